@@ -0,0 +1,128 @@
+/*************************************************************************
+ *  Compilation:  javac ActionResult.java
+ *
+ *  Outcome of a single move made by a hero: which move it was, who made it,
+ *  who it hit, how much damage was dealt and whether the target dodged,
+ *  was defending or died. Hero's moves write their outcome into an
+ *  ActionResult supplied by the caller, so a result can be reused for every
+ *  move of a battle and nothing is allocated per hit. The text shown to the
+ *  player is only built when getMessage() is called.
+ *
+ *  Version 1.0
+ *************************************************************************/
+public class ActionResult {
+  // Kinds of move, the indices of Party.COMMANDS
+  public static final int ATTACK = 0;
+  public static final int MAGIC = 1;
+  public static final int CLUSTER = 2;
+  public static final int DEFEND = 3;
+  
+  private int kind;
+  private Hero actor;
+  private Hero target;
+  private int damage;
+  private boolean dodged;
+  private boolean wasDefending;
+  private boolean died;
+  
+  // Retrieves the kind of move made, one of ATTACK, MAGIC, CLUSTER or DEFEND
+  public int getKind() {
+    return this.kind;
+  }
+  
+  // Retrieves the name of the move made, as used by ActionSource
+  public String getCommand() {
+    return Party.COMMANDS[this.kind];
+  }
+  
+  // Retrieves the hero that made the move
+  public Hero getActor() {
+    return this.actor;
+  }
+  
+  // Retrieves the hero that was targeted, or null for cluster and defend
+  public Hero getTarget() {
+    return this.target;
+  }
+  
+  // Retrieves the damage dealt; for cluster, the total dealt to the party
+  public int getDamage() {
+    return this.damage;
+  }
+  
+  // Retrieves whether or not the target dodged
+  public boolean getDodged() {
+    return this.dodged;
+  }
+  
+  // Retrieves whether or not the target was defending when it was hit
+  public boolean getWasDefending() {
+    return this.wasDefending;
+  }
+  
+  // Retrieves whether or not the move killed a hero
+  public boolean getDied() {
+    return this.died;
+  }
+  
+  /**
+   * Clears this result and records the start of a new move.
+   * @param kind, the kind of move, one of ATTACK, MAGIC, CLUSTER or DEFEND
+   * @param actor, the hero making the move
+   * @param target, the hero targeted, or null if the move has no single target
+   */
+  public void begin(int kind, Hero actor, Hero target) {
+    this.kind = kind;
+    this.actor = actor;
+    this.target = target;
+    this.damage = 0;
+    this.dodged = false;
+    this.wasDefending = false;
+    this.died = false;
+  }
+  
+  // Records that the target dodged
+  public void recordDodge() {
+    this.dodged = true;
+  }
+  
+  /**
+   * Records a hit.
+   * @param damage, the damage dealt
+   * @param wasDefending, whether or not the hero hit was defending
+   * @param died, whether or not the hero hit died
+   */
+  public void recordHit(int damage, boolean wasDefending, boolean died) {
+    this.damage += damage;
+    this.wasDefending = this.wasDefending || wasDefending;
+    this.died = this.died || died;
+  }
+  
+  /**
+   * Returns the text describing this move, as shown in Battle's textbox.
+   */
+  public String getMessage() {
+    if(this.kind == DEFEND) {
+      return this.actor.getName() + " braced itself for incoming damage!";
+    }
+    if(this.kind == CLUSTER) {
+      return this.actor.getName() + " attacked the entire party in one fell swoop!";
+    }
+    if(this.dodged) {
+      return this.target.getName() + " dodged the attack!";
+    }
+    
+    String damageType = this.kind == MAGIC ? " magic damage" : " damage";
+    if(this.died) {
+      return this.target.getName() + " took " + this.damage + damageType + " and died!";
+    }
+    if(this.wasDefending) {
+      return this.target.getName() + " was defending and took " + this.damage + damageType + "!";
+    }
+    return this.target.getName() + " took " + this.damage + damageType + "!";
+  }
+  
+  public String toString() {
+    return this.getMessage();
+  }
+}
@@ -0,0 +1,31 @@
+/*************************************************************************
+ *  Compilation:  javac ActionSource.java
+ *
+ *  Supplies the moves for one side of a battle. The BattleEngine asks its
+ *  action source which move each living hero of that side should make and,
+ *  for single target moves, which opposing hero it should be used on.
+ *  Battle implements this interface by reading the keyboard, while
+ *  RandomActionSource reproduces the enemy behaviour of Party.randomAttack.
+ *
+ *  Version 1.0
+ *************************************************************************/
+public interface ActionSource {
+  
+  /**
+   * Returns the move the given hero is to make, i.e. "attack", "magic",
+   * "cluster" or "defend".
+   * @param allies, the party the acting hero belongs to
+   * @param heroIndex, the index of the acting hero in allies.getHeroes()
+   * @param opponents, the party being fought
+   */
+  String chooseCommand(Party allies, int heroIndex, Party opponents);
+  
+  /**
+   * Returns the index, in opponents.getHeroes(), of the hero to be targeted
+   * by a single target move. Only called for "attack" and "magic".
+   * @param allies, the party the acting hero belongs to
+   * @param heroIndex, the index of the acting hero in allies.getHeroes()
+   * @param opponents, the party being fought
+   */
+  int chooseTarget(Party allies, int heroIndex, Party opponents);
+}
@@ -3,12 +3,25 @@
  *  Execution:    java Battle
  *
  * Tertiary atomic object. Allows for a battle to be conducted
- * between two parties of four heroes each. Damage and stat calculation
- * already have been done within the Hero and Party classes, thus this
- * class mainly sets up the battle, aesthetically and functionally.
+ * between two parties of heroes (four each in the game). Damage and stat calculation
+ * already have been done within the Hero and Party classes, and the rules
+ * of a battle are run by BattleEngine, thus this class mainly sets up the
+ * battle aesthetically and acts as the player's user interface.
  * 
  * To run a test battle, press Run. Use the WASD keys to switch between moves
  * or targets, and the enter key to select.
+ * 
+ * The battle runs on two threads. The logic thread runs the BattleEngine
+ * on a tick of 1/60 s: it waits for keys in PennDraw.awaitKeyTyped, a
+ * tick at a time, and handles them as soon as they are typed, and it
+ * publishes an immutable BattleFrame whenever the screen changes. The render thread
+ * draws the newest BattleFrame in PennDraw's animation mode at the
+ * display's refresh rate, so the screen keeps animating while the enemy
+ * thinks and never shows a move half applied.
+ * 
+ * The game's metrics can be watched through JMX, or written to a file in
+ * the OpenMetrics text format with -Dbattle.metrics.file=<file>; see
+ * BattleMetrics.
  *  
  *  Todo
  *  ----
@@ -19,17 +32,50 @@
  *  Version 1.0
  *************************************************************************/
 import java.awt.Dimension;
+import java.awt.DisplayMode;
+import java.awt.GraphicsEnvironment;
 import java.awt.Toolkit;
 import javafx.scene.media.Media;
 import javafx.scene.media.MediaPlayer;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
 import javafx.embed.swing.JFXPanel; 
 
-public class Battle {
+public class Battle implements ActionSource, BattleListener {
+  // The logic thread waits for keys, and paces replays, in ticks this far apart
+  private static final long TICK_NANOS = 1000000000L / 60;
+  private static final long TICK_MILLIS = TICK_NANOS / 1000000;
+  // Ticks each move of a replay is shown for
+  private static final int REPLAY_TICKS_PER_MOVE = 45;
+  // Frame rate of the render thread if the display's refresh rate is unknown
+  private static final int DEFAULT_FRAMES_PER_SECOND = 60;
+  // Rate at which the health shown counts towards a hero's health
+  private static final double HEALTH_PER_SECOND = 60;
+  // Time for a pointer to bob back and forth once
+  private static final double BOB_PERIOD_NANOS = 0.8e9;
+  
   private final Party controllable;
   private final Party enemy;
   private final double screenWidth;
   private final double screenHeight;
+  private ActionSource enemySource;
+  private Path recording;
+  private ReplayLog replay;
+  // The newest snapshot of the screen, handed from the logic thread to the render thread
+  private volatile BattleFrame frame;
+  // State of the screen, only used by the logic thread
+  private String text;
+  private String command;
+  private int ally = -1;
+  private int target = -1;
+  private int thinking = -1;
+  private long nextTick;
+  private Thread renderer;
   
   /**
    * Constructor
@@ -39,6 +85,7 @@ public class Battle {
   public Battle(Party controllable, Party enemy) {
     this.controllable = controllable;
     this.enemy = enemy;
+    this.enemySource = new RandomActionSource();
     
     Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
     this.screenWidth = (int) screenSize.getWidth();
@@ -65,9 +112,63 @@ public class Battle {
     return this.enemy;
   }
   
+  /**
+   * Sets what chooses the enemy party's moves, which by default are random.
+   * @param enemySource, e.g. a MonteCarloActionSource for a harder enemy
+   */
+  public void setEnemySource(ActionSource enemySource) {
+    this.enemySource = enemySource;
+  }
   
-  // Main testing
-  public static void main(String[] args) {
+  /**
+   * Sets a file to record the battle to, which ReplayLog can replay, or
+   * null not to record it.
+   * @param recording, the replay log file to be written
+   */
+  public void setRecording(Path recording) {
+    this.recording = recording;
+  }
+  
+  /**
+   * Sets a recorded battle to be shown instead of a battle being played, or
+   * null to play. The parties of the battle must be those of the replay.
+   * @param replay, the replay log to be shown
+   */
+  public void setReplay(ReplayLog replay) {
+    this.replay = replay;
+  }
+  
+  
+  // Main testing; "record file" records the battle, "replay file" shows a recorded one
+  public static void main(String[] args) throws IOException {
+    BattleMetrics.register();
+    PennDraw.setListener(new PennDraw.Listener() {
+      public void pictureDrawn(long nanos) {
+        BattleMetrics.recordPicture(nanos);
+      }
+      
+      public void fullCopy() {
+        BattleMetrics.countFullCopy();
+      }
+      
+      public void keyTyped() {
+        BattleMetrics.keyTyped();
+      }
+    });
+    String metricsFile = System.getProperty("battle.metrics.file");
+    if(metricsFile != null) {
+      BattleMetrics.startExporter(Paths.get(metricsFile),
+                                  Long.getLong("battle.metrics.period", 5000));
+    }
+    
+    if(args.length == 2 && args[0].equals("replay")) {
+      ReplayLog replay = ReplayLog.read(Paths.get(args[1]));
+      Battle battle = new Battle(replay.getParty(0), replay.getParty(1));
+      battle.setReplay(replay);
+      battle.startBattle();
+      return;
+    }
+    
     Hero knight = new Hero(95, 45, 85, 25, 10, 30, 25, "knight.png", "Knight");
     Hero mage = new Hero(65, 10, 45, 65, 90, 70, 55, "mage.png", "Mage");
     Hero thief = new Hero(55, 50, 60, 45, 25, 60, 80, "thief.png", "Thief");
@@ -106,265 +207,237 @@ public class Battle {
     int speedTest3 = printSpeeds(party1.getHeroes());
     
     Battle battle = new Battle(party0, party1);
+    // The enemy searches for each of its moves for 50 ms
+    battle.setEnemySource(new MonteCarloActionSource(50, Runtime.getRuntime().availableProcessors(),
+                                                     true, System.nanoTime()));
+    if(args.length == 2 && args[0].equals("record")) {
+      battle.setRecording(Paths.get(args[1]));
+    }
     battle.startBattle();
   }
   
   /**
-   * Determines which party is to move first
-   * and begins the battle.
+   * Runs the battle on a BattleEngine, with the player choosing the
+   * controllable party's moves and the enemy source the enemy party's,
+   * or shows the replay if one is set. The engine runs on this thread,
+   * the logic thread, while a render thread draws what it publishes.
    */
-  private void startBattle() {
-    Party firstParty = this.determineFirstParty();
-    Party secondParty;
-    if(firstParty.equals(this.controllable)) {
-      secondParty = this.enemy;
+  private void startBattle() throws IOException {
+    BattleEngine engine;
+    ReplayRecorder recorder = null;
+    if(this.replay != null) {
+      engine = this.replay.newEngine(this.controllable, this.enemy);
     }
     else {
-      secondParty = this.controllable;
+      // A seeded engine, so that a recording reproduces every dodge
+      long seed = ThreadLocalRandom.current().nextLong();
+      ActionSource player = this;
+      ActionSource enemySource = this.showThinking(this.enemySource);
+      if(this.recording != null) {
+        recorder = new ReplayRecorder(this.recording, seed, true, this.controllable, this.enemy);
+        player = recorder.record(0, player);
+        enemySource = recorder.record(1, enemySource);
+      }
+      engine = new BattleEngine(this.controllable, player, this.enemy, enemySource,
+                                new SplittableRandom(seed));
+      // Heroes of both parties take turns in order of speed
+      engine.setInitiativeOrder(true);
     }
+    engine.setListener(this);
     
-    this.setStage();
-    this.drawText("Welcome to Albert's battle sim! Use WASD + enter");
+    this.text = "Welcome to Albert's battle sim! Use WASD + enter";
+    this.publish();
+    this.startRenderer();
+    this.playMusic();
+    this.nextTick = System.nanoTime();
     
-    while(!(this.controllable.isDefeated()) && !(this.enemy.isDefeated())) {
-      for(int i = 0; i < 4; i++) {
-        if(!(firstParty.getHeroes()[i].getAlive())) {
-          continue;
-        }
-        drawControllablePartyPointer(i);
-        
-        String command = this.checkCommand();
-        
-        if(command.equals("attack")) {
-          int target = this.checkTarget();
-          drawTextbox();
-          drawText(firstParty.getHeroes()[i].attack(secondParty.getHeroes()[target], false));
-        }
-        
-        if(command.equals("magic")) {
-          int target = this.checkTarget();
-          drawTextbox();
-          drawText(firstParty.getHeroes()[i].magic(secondParty.getHeroes()[target]));
-        }
-        
-        if(command.equals("cluster")) {
-          for(int j = 0; j < 4; j++) {
-            drawEnemyPointer(j);
-          }
-          drawTextbox();
-          drawText(firstParty.getHeroes()[i].cluster(secondParty));
-        }
-        
-        if(command.equals("defend")) {
-          for(int j = 0; j < 4; j++) {
-            drawEnemyPointer(j);
-          }
-          drawTextbox();
-          drawText(firstParty.getHeroes()[i].defend());
-        }
-        
-        eraseControllablePartyPointers();
-        eraseEnemyPointers();
-        clearHealth();
-        drawAllHealth();
+    try {
+      engine.run();
+    }
+    finally {
+      if(recorder != null) {
+        recorder.close();
       }
-      
-      secondParty.randomAttack(firstParty);
-      clearHealth();
-      drawAllHealth();
-      drawTextbox();  
     }
     
-    drawTextbox();
     if(this.controllable.isDefeated()) {
-      drawText("You lost!");
+      this.text = "You lost!";
     }
     else {
-      drawText("You won!");
+      this.text = "You won!";
     }
+    this.publish();
   }
   
   /**
-   * Draws a black image over where both parties' health appears,
-   * effectively erasing all health images.
+   * Points at the hero whose move is being chosen and lets the player
+   * pick a move. Only called for the controllable party.
    */
-  private void clearHealth() {
-    PennDraw.picture(0.05 * this.screenWidth, 0.635 * this.screenHeight,
-                     "background.png", 0.10 * this.screenWidth, 0.63 * this.screenHeight);
-    PennDraw.picture(0.95 * this.screenWidth, 0.635 * this.screenHeight,
-                     "background.png", 0.10 * this.screenWidth, 0.63 * this.screenHeight);                
+  public String chooseCommand(Party allies, int heroIndex, Party opponents) {
+    this.ally = heroIndex;
+    return this.checkCommand();
   }
   
   /**
-   * Draws a pointer pointing to a hero in the controllable party.
-   * @param heroIndex, the index of the hero in the controllable party's hero array.
+   * Lets the player pick the target of an attack or magic move.
    */
-  private void drawControllablePartyPointer(int heroIndex) {
-    if(heroIndex < 0 || heroIndex > 3) {
-      return;
+  public int chooseTarget(Party allies, int heroIndex, Party opponents) {
+    return this.checkTarget();
+  }
+  
+  /**
+   * Shows the result of a move made by the player, and both parties'
+   * health after any move. A replay is shown at a fixed number of ticks
+   * per move, so that it can be followed.
+   */
+  public void actionPerformed(Party acting, int heroIndex, ActionResult result) {
+    if(acting.equals(this.controllable)) {
+      this.text = result.getMessage();
+      this.ally = -1;
+      this.target = -1;
+    }
+    this.publish();
+    if(this.replay != null) {
+      for(int i = 0; i < REPLAY_TICKS_PER_MOVE; i++) {
+        this.awaitTick();
+      }
+    }
+  }
+  
+  /**
+   * Clears the textbox once the enemy party has finished its turn.
+   */
+  public void turnEnded(Party acting) {
+    if(acting.equals(this.enemy)) {
+      this.text = null;
+      this.publish();
+    }
+  }
+  
+  /**
+   * Returns an action source choosing the same moves as the given one,
+   * which shows the enemy hero whose move is being chosen while it thinks.
+   * @param source, the source of the enemy party's moves
+   */
+  private ActionSource showThinking(final ActionSource source) {
+    return new ActionSource() {
+      public String chooseCommand(Party allies, int heroIndex, Party opponents) {
+        Battle.this.thinking = heroIndex;
+        Battle.this.publish();
+        try {
+          return source.chooseCommand(allies, heroIndex, opponents);
+        }
+        finally {
+          Battle.this.thinking = -1;
+          Battle.this.publish();
+        }
+      }
+      
+      public int chooseTarget(Party allies, int heroIndex, Party opponents) {
+        return source.chooseTarget(allies, heroIndex, opponents);
+      }
+    };
+  }
+  
+  /**
+   * Publishes a snapshot of the battle screen for the render thread.
+   * Only called on the logic thread.
+   */
+  private void publish() {
+    this.frame = new BattleFrame(this.controllable, this.enemy, this.text, this.command,
+                                 this.ally, this.target, this.thinking);
+    if(this.renderer != null) {
+      LockSupport.unpark(this.renderer);
     }
-    PennDraw.picture(0.25 * this.screenWidth, (0.89 - (0.17 * heroIndex)) * this.screenHeight,
-                     "pointerreversed.png", 0.06 * this.screenWidth, 0.075 * this.screenHeight);  
   }
   
   /**
-   * Draws a black image over the area where pointers point to the controllable party's icons,
-   * effectively erasing all pointers pointing to the controllable party.
+   * Waits for the next logic tick of a replay. Ticks are a fixed time
+   * apart; if the logic thread falls behind, the missed ticks are skipped
+   * rather than run in a burst.
    */
-  private void eraseControllablePartyPointers() {
-    PennDraw.picture(0.25 * this.screenWidth, 0.635 * this.screenHeight,
-                     "background.png", 0.06* this.screenWidth, 0.63 * this.screenHeight);
+  private void awaitTick() {
+    this.nextTick += TICK_NANOS;
+    long wait = this.nextTick - System.nanoTime();
+    if(wait > 0) {
+      LockSupport.parkNanos(wait);
+    }
+    else {
+      this.nextTick = System.nanoTime();
+    }
   }
   
   /**
    * Checks user key input and retrieves the target the user
-   * intends to attack.
+   * intends to attack. Between keys, the logic thread blocks until a key is
+   * typed, waking at most once a tick.
    */
   private int checkTarget() {
     int targetIndex = 0;
+    int lastIndex = this.enemy.getHeroes().length - 1;
     String enter0 = ((char) 10) + "";
     String enter1 = ((char) 13) + "";
-    this.drawEnemyPointer(targetIndex);
+    this.target = targetIndex;
+    this.publish();
     while(true) {
-      if(PennDraw.hasNextKeyTyped()) {
+      if(!(PennDraw.awaitKeyTyped(TICK_MILLIS))) {
+        continue;
+      }
+      while(PennDraw.hasNextKeyTyped()) {
         String input = PennDraw.nextKeyTyped() + "";
         if(input.equals(enter0) || input.equals(enter1)) {
-          eraseEnemyPointers();
+          this.target = -1;
+          this.publish();
           return targetIndex;
         }
         if(input.equals("s") || input.equals("S")) {
-          if(targetIndex == 3) {
-            targetIndex = 0;
-            eraseEnemyPointers();
-            drawEnemyPointer(targetIndex);
-          }
-          else {
-            if(targetIndex < 3) {
-              targetIndex++;
-              eraseEnemyPointers();
-              drawEnemyPointer(targetIndex);
-            }
-          }      
+          targetIndex = (targetIndex == lastIndex) ? 0 : targetIndex + 1;
         }
         if(input.equals("w") || input.equals("W")) {
-          if(targetIndex == 0) {
-            targetIndex = 3;
-            eraseEnemyPointers();
-            drawEnemyPointer(targetIndex);
-          }
-          else {
-            if(targetIndex > 0) {
-              targetIndex--;
-              eraseEnemyPointers();
-              drawEnemyPointer(targetIndex);       
-            }
-          }
+          targetIndex = (targetIndex == 0) ? lastIndex : targetIndex - 1;
         }
       }
+      // Published even if nothing changed, as the frame reflecting the keys
+      this.target = targetIndex;
+      this.publish();
     }
   }
   
-  /**
-   * Draws a pointer pointing to a given hero in the enemy (right) party.
-   * @param targetIndex, the index of the hero to be drawn in the enemy party's
-   * hero array.
-   */
-  private void drawEnemyPointer(int targetIndex) {
-    if(targetIndex < 0 || targetIndex > 3) {
-      return;
-    }
-    PennDraw.picture(0.745 * this.screenWidth, (0.89 - (0.17 * targetIndex)) * this.screenHeight,
-                     "pointer.png", 0.06 * this.screenWidth, 0.075 * this.screenHeight);                   
-  }
-  
-  /**
-   * Draws a black image over where the enemy pointers are drawn, effectively
-   * erasing all previously enemy pointers.
-   */
-  private void eraseEnemyPointers() {
-    PennDraw.picture(0.75 * this.screenWidth, 0.635 * this.screenHeight,
-                     "background.png", 0.06* this.screenWidth, 0.63 * this.screenHeight);
-  }
-  
   /**
    * Checks user key input and retrieves the move the user
    * intends to use, i.e. "attack", "magic", "cluster", "defend", 
-   * as a String.
+   * as a String. Between keys, the logic thread blocks until a key is
+   * typed, waking at most once a tick.
    */
   private String checkCommand() {
     int commandSpotsRight = 0;
     int commandSpotsUp = 1;
     String enter0 = ((char) 10) + "";
-    String enter1 = ((char) 13) + "";                  
-    this.drawPointer("attack");
+    String enter1 = ((char) 13) + "";
+    this.command = getCommand(commandSpotsRight, commandSpotsUp);
+    this.publish();
     while(true) {
-      if(PennDraw.hasNextKeyTyped()) {
+      if(!(PennDraw.awaitKeyTyped(TICK_MILLIS))) {
+        continue;
+      }
+      while(PennDraw.hasNextKeyTyped()) {
         String input = PennDraw.nextKeyTyped() + "";
         if(input.equals(enter0) || input.equals(enter1)) {
-          eraseGUIPointers();
+          this.command = null;
+          this.publish();
           return getCommand(commandSpotsRight, commandSpotsUp);
         }
-        
-        if(input.equals("w") || input.equals("W")) {
-          if(commandSpotsUp == 1) {
-            commandSpotsUp = 0;
-            eraseGUIPointers();
-            drawPointer(getCommand(commandSpotsRight, commandSpotsUp));
-          }
-          else {
-            if(commandSpotsUp == 0) {
-              commandSpotsUp++;
-              eraseGUIPointers();
-              drawPointer(getCommand(commandSpotsRight, commandSpotsUp));
-            }
-          }   
+        // Both rows and both columns wrap around, so each key toggles one
+        if(input.equals("w") || input.equals("W") || input.equals("s") || input.equals("S")) {
+          commandSpotsUp = 1 - commandSpotsUp;
         }
-        
-        if(input.equals("a") || input.equals("A")) {
-          if(commandSpotsRight == 0) {
-            commandSpotsRight = 1;
-            eraseGUIPointers();
-            drawPointer(getCommand(commandSpotsRight, commandSpotsUp));
-          }
-          else {
-            if(commandSpotsRight == 1) {
-              commandSpotsRight--; 
-              eraseGUIPointers();
-              drawPointer(getCommand(commandSpotsRight, commandSpotsUp));
-            }
-          }    
-        }
-        
-        if(input.equals("s") || input.equals("S")) {
-          if(commandSpotsUp == 0) {
-            commandSpotsUp = 1;
-            eraseGUIPointers();
-            drawPointer(getCommand(commandSpotsRight, commandSpotsUp));     
-          }
-          else {
-            if(commandSpotsUp == 1) {
-              commandSpotsUp--;
-              eraseGUIPointers();
-              drawPointer(getCommand(commandSpotsRight, commandSpotsUp));     
-            }
-          }   
-        }
-        
-        if(input.equals("d") || input.equals("D")) {
-          if(commandSpotsRight == 1) {
-            commandSpotsRight = 0;
-            eraseGUIPointers();
-            drawPointer(getCommand(commandSpotsRight, commandSpotsUp));
-          }
-          else {
-            if(commandSpotsRight == 0) {
-              commandSpotsRight++;
-              eraseGUIPointers();
-              drawPointer(getCommand(commandSpotsRight, commandSpotsUp));
-            }
-          }
+        if(input.equals("a") || input.equals("A") || input.equals("d") || input.equals("D")) {
+          commandSpotsRight = 1 - commandSpotsRight;
         }
       }
+      // Published even if nothing changed, as the frame reflecting the keys
+      this.command = getCommand(commandSpotsRight, commandSpotsUp);
+      this.publish();
     }
   } 
   
@@ -414,54 +487,132 @@ public class Battle {
   }
   
   /**
-   * Draws a black image over a portion of the screen's center and then
-   * redraws the move GUI, effectively
-   * erasing all GUI pointers.
+   * Starts the render thread, a daemon thread so that it never keeps the
+   * game running by itself.
    */
-  private void eraseGUIPointers() {
-    PennDraw.picture(0.5 * this.screenWidth, 0.7 * this.screenHeight,
-                     "background.png", 0.40 * this.screenWidth, 0.8 * this.screenHeight);
-    this.drawGUI();
+  private void startRenderer() {
+    this.renderer = new Thread(this::render, "battle-render");
+    this.renderer.setDaemon(true);
+    this.renderer.start();
   }
   
   /**
-   * Draws a single hero's health.
-   * @param party, the party in which that hero is in
-   * @param heroInParty, the hero in question
+   * Composes frames of the newest published snapshot at the display's
+   * refresh rate, forever. Only this thread draws with PennDraw once the
+   * battle has started. Health shown counts down smoothly to the health
+   * of the snapshot, and the pointers at the hero choosing a move bob.
+   * While neither the snapshot nor the animation changes, nothing is
+   * drawn and the thread sleeps until the next snapshot is published.
    */
-  private void drawHealth(Party party, Hero heroInParty) {
-    PennDraw.setPenColor(255, 255, 255);
-    PennDraw.setFont("Cambria Math");
-    PennDraw.setFontSize(40);
-    int index = party.getIndexOfHero(heroInParty);
-    if(party.equals(this.controllable)) {
-      PennDraw.text(0.05 * this.screenWidth,
-                    0.38 * this.screenHeight + (index * 0.17 * this.screenHeight),
-                    controllable.getHeroes()[Math.abs(index - 3)].getCurrentHealth() +
-                    "/" + controllable.getHeroes()[Math.abs(index - 3)].getMaxHealth());
-      
+  private void render() {
+    int frameRate = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+      .getDisplayMode().getRefreshRate();
+    if(frameRate == DisplayMode.REFRESH_RATE_UNKNOWN) {
+      frameRate = DEFAULT_FRAMES_PER_SECOND;
     }
+    PennDraw.enableAnimation(frameRate);
     
-    if(party.equals(this.enemy)) {
-      PennDraw.text(0.94 * this.screenWidth,
-                    0.38 * this.screenHeight + (index * 0.17 * this.screenHeight),
-                    enemy.getHeroes()[Math.abs(index - 3)].getCurrentHealth() +
-                    "/" + enemy.getHeroes()[Math.abs(index - 3)].getMaxHealth());
-      
+    BattleFrame frame = this.frame;
+    BattleFrame drawn = null;
+    double[][] shownHealth = new double[2][];
+    for(int side = 0; side < 2; side++) {
+      shownHealth[side] = new double[frame.getSize(side)];
+      for(int i = 0; i < frame.getSize(side); i++) {
+        shownHealth[side][i] = frame.getHealth(side, i);
+      }
+    }
+    long last = System.nanoTime();
+    while(true) {
+      frame = this.frame;
+      long now = System.nanoTime();
+      // At most a frame's worth, so that health starts counting after a sleep
+      double step = HEALTH_PER_SECOND * Math.min((now - last) / 1e9, 1.0 / frameRate);
+      last = now;
+      boolean animating = frame.getAlly() >= 0 || frame.getThinking() >= 0;
+      for(int side = 0; side < 2; side++) {
+        for(int i = 0; i < shownHealth[side].length; i++) {
+          double health = frame.getHealth(side, i);
+          // Still animating if the health shown last frame was not yet the health
+          animating = animating || shownHealth[side][i] != health;
+          if(shownHealth[side][i] > health) {
+            shownHealth[side][i] = Math.max(health, shownHealth[side][i] - step);
+          }
+          else {
+            shownHealth[side][i] = Math.min(health, shownHealth[side][i] + step);
+          }
+        }
+      }
+      if(frame == drawn && !(animating)) {
+        LockSupport.park(this);
+        continue;
+      }
+      this.drawFrame(frame, shownHealth, now);
+      PennDraw.advance();
+      if(frame != drawn) {
+        BattleMetrics.repainted(frame.getTime());
+        drawn = frame;
+      }
     }
   }
   
   /**
-   * Draws both parties' health, displayed as currentHealth / maxHealth.
+   * Draws the whole battle screen from a snapshot.
+   * @param frame, the snapshot to be drawn
+   * @param shownHealth, the health to be shown of each hero, by side and slot
+   * @param now, the time of the frame, from System.nanoTime()
    */
-  private void drawAllHealth() {
+  private void drawFrame(BattleFrame frame, double[][] shownHealth, long now) {
+    PennDraw.clear(0, 0, 0);
+    double[] heroX = {0.16, 0.84};
+    double[] healthX = {0.05, 0.94};
     PennDraw.setPenColor(255, 255, 255);
     PennDraw.setFont("Cambria Math");
     PennDraw.setFontSize(40);
-    for(int i = 0; i < 4; i++) {
-      this.drawHealth(this.controllable, this.controllable.getHeroes()[i]);
-      this.drawHealth(this.enemy, this.enemy.getHeroes()[i]);
+    for(int side = 0; side < 2; side++) {
+      for(int i = 0; i < frame.getSize(side); i++) {
+        double y = this.rowY(frame.getSize(side), i);
+        PennDraw.picture(heroX[side] * this.screenWidth, y, frame.getImage(side, i),
+                         0.12 * this.screenWidth, 0.12 * this.screenHeight);
+        PennDraw.text(healthX[side] * this.screenWidth, y,
+                      Math.round(shownHealth[side][i]) + "/" + frame.getMaxHealth(side, i));
+      }
+    }
+    this.drawGUI();
+    
+    if(frame.getCommand() != null) {
+      this.drawPointer(frame.getCommand());
+    }
+    double bob = 0.005 * this.screenWidth * Math.sin(2 * Math.PI * now / BOB_PERIOD_NANOS);
+    if(frame.getAlly() >= 0) {
+      PennDraw.picture(0.25 * this.screenWidth + bob, this.rowY(frame.getSize(0), frame.getAlly()),
+                       "pointerreversed.png", 0.06 * this.screenWidth, 0.075 * this.screenHeight);
+    }
+    if(frame.getTarget() >= 0) {
+      PennDraw.picture(0.745 * this.screenWidth, this.rowY(frame.getSize(1), frame.getTarget()),
+                       "pointer.png", 0.06 * this.screenWidth, 0.075 * this.screenHeight);
     }
+    if(frame.getThinking() >= 0) {
+      PennDraw.picture(0.745 * this.screenWidth - bob,
+                       this.rowY(frame.getSize(1), frame.getThinking()),
+                       "pointer.png", 0.06 * this.screenWidth, 0.075 * this.screenHeight);
+    }
+    
+    this.drawTextbox();
+    if(frame.getText() != null) {
+      this.drawText(frame.getText());
+    }
+  }
+  
+  /**
+   * Retrieves the height at which a hero is drawn. The first (slowest) hero
+   * of a party is drawn at the top and the last at the bottom; parties of
+   * more than four heroes are packed closer together to fit.
+   * @param size, the number of heroes in the party
+   * @param index, the index of the hero in the party's hero array
+   */
+  private double rowY(int size, int index) {
+    double spacing = 0.51 / Math.max(size - 1, 3);
+    return (0.89 - (spacing * index)) * this.screenHeight;
   }
   
   /**
@@ -477,19 +628,6 @@ public class Battle {
     return -1;
   }
   
-  /**
-   * Makes the background black, draws both parties, draws move GUI, draws a 
-   * blank textbox, and plays music.
-   */
-  private void setStage() {
-    PennDraw.clear(0, 0, 0);
-    this.drawParties();
-    this.drawAllHealth();
-    this.drawGUI();
-    this.drawTextbox();
-    this.playMusic();
-  }
-  
   /**
    * Draws a blank textbox, as well as erases the text previously there.
    */
@@ -522,36 +660,6 @@ public class Battle {
     mediaPlayer.play();
   }
   
-  /**
-   * Draws both parties.
-   */
-  private void drawParties() {
-    this.drawControllableParty();
-    this.drawEnemyParty();
-  }
-  
-  /**
-   * Draws all images of the controllable party in their respective places.
-   */
-  private void drawControllableParty() {
-    for(int i = 0; i < 4; i++) {
-      this.controllable.getHeroes()[Math.abs(i - 3)].drawAlive(0.16 * this.screenWidth,
-                                         (0.38 * this.screenHeight) + (0.17 * i * this.screenHeight),
-                                                               this.screenWidth, this.screenHeight);
-    }
-  }
-  
-  /**
-   * Draws all images of the enemy party in their respective places.
-   */
-  private void drawEnemyParty() {
-    for(int i = 0; i < 4; i++) {
-      this.enemy.getHeroes()[Math.abs(i - 3)].drawAlive(0.84 * this.screenWidth,
-                                                        (0.38 * this.screenHeight) + (0.17 * i * this.screenHeight),
-                                                        this.screenWidth, this.screenHeight);
-    }
-  }
-  
   /**
    * Draws text in the textbox at the bottom of the screen.
    * @param text, the text to be drawn
@@ -576,38 +684,9 @@ public class Battle {
    * of going first.
    */
   public Party determineFirstParty() {
-    int controllablePartySpeed = 0;
-    int enemyPartySpeed = 0;
-    
-    for(int i = 0; i < 4; i++) {
-      controllablePartySpeed = controllablePartySpeed +
-        this.getControllableParty().getHeroes()[i].getSpeed();  
-    }
-    
-    for(int i = 0; i < 4; i++) {
-      enemyPartySpeed = enemyPartySpeed +
-        this.getEnemyParty().getHeroes()[i].getSpeed();  
-    }
-    
-    if(controllablePartySpeed > enemyPartySpeed) {
-      return this.getControllableParty();
-    }
-    
-    if(controllablePartySpeed < enemyPartySpeed) {
-      return this.getEnemyParty();
-    }
-    
-    if(controllablePartySpeed == enemyPartySpeed) {
-      double rndm = Math.random();
-      if(rndm < 0.5) {
-        return this.getControllableParty();
-      }
-      else {
-        return this.getEnemyParty();
-      }
-    }
-    // Unreachable return statement; present for function completion  
-    return this.getControllableParty();
+    return BattleEngine.determineFirstParty(this.getControllableParty(),
+                                            this.getEnemyParty(),
+                                            ThreadLocalRandom.current());
   }
   
 }
\ No newline at end of file
@@ -0,0 +1,382 @@
+/*************************************************************************
+ *  Compilation:  javac BattleEngine.java
+ *  Execution:    java BattleEngine
+ *
+ *  Rules engine for a battle between two parties. The engine decides
+ *  which party moves first, asks each side's ActionSource for the moves of
+ *  its living heroes and applies them, until one party is defeated. It has
+ *  no dependency on PennDraw, Swing or JavaFX, so battles can be run on a
+ *  headless machine (java.awt.headless=true) as fast as the rules allow.
+ *  Battle is the graphical client of this class.
+ *
+ *  A turn consists of every living hero of the first party making a move,
+ *  followed by every living hero of the second party. The battle ends as
+ *  soon as either party is defeated, even part way through a turn.
+ *
+ *  Alternatively, with setInitiativeOrder(true), heroes of both parties act
+ *  interleaved in order of speed, as scheduled by an InitiativeQueue; a
+ *  turn is then one round in which every living hero acts once.
+ *
+ *  Every dodge and coin toss is rolled with the engine's random number
+ *  generator. Giving each battle its own SplittableRandom, split from a
+ *  root seed, makes battles reproducible and lets many run on different
+ *  threads without sharing a generator.
+ *
+ *  Version 1.0
+ *************************************************************************/
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
+
+public class BattleEngine {
+  private final Party first;
+  private final Party second;
+  private final ActionSource firstSource;
+  private final ActionSource secondSource;
+  private final RandomGenerator random;
+  private final ActionResult result = new ActionResult();
+  private BattleListener listener;
+  private InitiativeQueue initiative;
+  private int turns;
+  // Tallies for BattleMetrics, published once the battle is over
+  private final int[] actions = new int[4];
+  private int dodges;
+  private final int deadAtStart;
+
+  /**
+   * Constructor 1 - Rolls dice with the calling thread's ThreadLocalRandom.
+   * @param party0, the first of the two parties to battle
+   * @param source0, the source of party0's moves
+   * @param party1, the second of the two parties to battle
+   * @param source1, the source of party1's moves
+   */
+  public BattleEngine(Party party0, ActionSource source0,
+                      Party party1, ActionSource source1) {
+    this(party0, source0, party1, source1, null);
+  }
+
+  /**
+   * Constructor 2 - Rolls every dodge and coin toss with the given random
+   * number generator, which should not be shared with another thread.
+   * @param party0, the first of the two parties to battle
+   * @param source0, the source of party0's moves
+   * @param party1, the second of the two parties to battle
+   * @param source1, the source of party1's moves
+   * @param random, the random number generator, or null for ThreadLocalRandom
+   */
+  public BattleEngine(Party party0, ActionSource source0,
+                      Party party1, ActionSource source1, RandomGenerator random) {
+    if(party0 == party1) {
+      throw new RuntimeException("A party cannot battle itself.");
+    }
+    if(!(party0.holdsAll()) || !(party1.holdsAll())) {
+      // Its deaths would be reported to the other party and it could never be defeated
+      throw new RuntimeException("A party's heroes have moved to another party.");
+    }
+    this.random = random;
+
+    if(determineFirstParty(party0, party1, this.random()) == party0) {
+      this.first = party0;
+      this.firstSource = source0;
+      this.second = party1;
+      this.secondSource = source1;
+    }
+    else {
+      this.first = party1;
+      this.firstSource = source1;
+      this.second = party0;
+      this.secondSource = source0;
+    }
+    this.turns = 0;
+    this.deadAtStart = countDead(party0) + countDead(party1);
+  }
+
+  /**
+   * Retrieves the party which moves first each turn.
+   */
+  public Party getFirstParty() {
+    return this.first;
+  }
+
+  /**
+   * Retrieves the party which moves second each turn.
+   */
+  public Party getSecondParty() {
+    return this.second;
+  }
+
+  /**
+   * Retrieves the number of turns started so far.
+   */
+  public int getTurns() {
+    return this.turns;
+  }
+
+  /**
+   * Sets the listener to be told about every move, or null for none.
+   * @param listener, the listener to be notified
+   */
+  public void setListener(BattleListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Chooses between whole-party turns (the default) and per-hero turns in
+   * order of speed across both parties. Should be set before the battle
+   * starts.
+   * @param enabled, true for per-hero turns, false for whole-party turns
+   */
+  public void setInitiativeOrder(boolean enabled) {
+    if(this.initiative != null) {
+      this.initiative.detach();
+      this.initiative = null;
+    }
+    if(enabled) {
+      // The first party wins ties in speed, as it would move first
+      this.initiative = new InitiativeQueue(this.first, this.second);
+    }
+  }
+  
+  /**
+   * Returns true if either party has been defeated.
+   */
+  public boolean isOver() {
+    return this.first.isDefeated() || this.second.isDefeated();
+  }
+
+  /**
+   * Returns the party that won, or null if the battle is not over.
+   */
+  public Party getWinner() {
+    if(this.first.isDefeated()) {
+      return this.second;
+    }
+    if(this.second.isDefeated()) {
+      return this.first;
+    }
+    return null;
+  }
+
+  /**
+   * Runs turns until one party is defeated and returns the winner.
+   */
+  public Party run() {
+    while(!(this.isOver())) {
+      this.playTurn();
+    }
+    if(this.initiative != null) {
+      this.initiative.detach();
+      this.initiative = null;
+    }
+    return this.getWinner();
+  }
+
+  /**
+   * Plays a single turn: the first party moves, then the second party.
+   * Does nothing if the battle is already over.
+   */
+  public void playTurn() {
+    if(this.isOver()) {
+      return;
+    }
+    this.turns++;
+    if(this.initiative != null) {
+      this.playRound();
+    }
+    else {
+      this.playPartyTurn(this.first, this.firstSource, this.second);
+      if(!(this.second.isDefeated())) {
+        this.playPartyTurn(this.second, this.secondSource, this.first);
+      }
+    }
+    if(this.isOver()) {
+      BattleMetrics.recordBattle(this.turns, this.actions, this.dodges,
+                                 countDead(this.first) + countDead(this.second)
+                                   - this.deadAtStart);
+    }
+  }
+
+  // Returns the number of dead heroes in a party
+  private static int countDead(Party party) {
+    int dead = 0;
+    for(Hero hero : party.getHeroes()) {
+      if(!(hero.getAlive())) {
+        dead++;
+      }
+    }
+    return dead;
+  }
+
+  /**
+   * Has each living hero of a party make a move chosen by its action source,
+   * in order of ascending speed.
+   * @param acting, the party to move
+   * @param source, the source of the acting party's moves
+   * @param opposing, the party being fought
+   */
+  private void playPartyTurn(Party acting, ActionSource source, Party opposing) {
+    Hero[] heroes = acting.getHeroes();
+    int[] order = acting.getSpeedOrder();
+    for(int k = 0; k < order.length; k++) {
+      int i = order[k];
+      if(!(heroes[i].getAlive())) {
+        continue;
+      }
+
+      this.act(acting, i, source, opposing);
+
+      if(opposing.isDefeated()) {
+        break;
+      }
+    }
+    if(this.listener != null) {
+      this.listener.turnEnded(acting);
+    }
+  }
+
+  /**
+   * Has every living hero of both parties make a move, fastest first,
+   * as scheduled by the initiative queue.
+   */
+  private void playRound() {
+    int round = this.initiative.peekRound();
+    while(!(this.isOver()) && this.initiative.peekRound() == round) {
+      int id = this.initiative.next();
+      Party acting = this.initiative.getParty(id);
+      if(acting == this.first) {
+        this.act(this.first, this.initiative.getSlot(id), this.firstSource, this.second);
+      }
+      else {
+        this.act(this.second, this.initiative.getSlot(id), this.secondSource, this.first);
+      }
+    }
+    if(this.listener != null) {
+      this.listener.turnEnded(this.first);
+      this.listener.turnEnded(this.second);
+    }
+  }
+
+  /**
+   * Has a living hero make a move chosen by its party's action source.
+   * @param acting, the party of the hero to move
+   * @param i, the index of the hero in the acting party
+   * @param source, the source of the acting party's moves
+   * @param opposing, the party being fought
+   */
+  private void act(Party acting, int i, ActionSource source, Party opposing) {
+    String command = source.chooseCommand(acting, i, opposing);
+    int target = -1;
+    if(command.equals("attack") || command.equals("magic")) {
+      target = source.chooseTarget(acting, i, opposing);
+    }
+
+    perform(acting.getHeroes()[i], command, opposing, target, this.random(), this.result);
+    this.actions[this.result.getKind()]++;
+    if(this.result.getDodged()) {
+      this.dodges++;
+    }
+    if(this.listener != null) {
+      this.listener.actionPerformed(acting, i, this.result);
+    }
+  }
+
+  // ThreadLocalRandom.current() must be looked up by the thread using it
+  private RandomGenerator random() {
+    if(this.random == null) {
+      return ThreadLocalRandom.current();
+    }
+    return this.random;
+  }
+
+  /**
+   * Makes a hero perform a move and writes its outcome into a result.
+   * @param hero, the hero making the move
+   * @param command, "attack", "magic", "cluster" or "defend"
+   * @param opposing, the party being fought
+   * @param target, the index of the targeted opponent for "attack" and "magic"
+   * @param random, the random number generator to roll dodges with
+   * @param result, the result to be written, or null if it is not needed
+   */
+  public static void perform(Hero hero, String command, Party opposing, int target,
+                             RandomGenerator random, ActionResult result) {
+    if(command.equals("attack")) {
+      hero.attack(opposing.getHeroes()[target], false, random, result);
+      return;
+    }
+    if(command.equals("magic")) {
+      hero.magic(opposing.getHeroes()[target], random, result);
+      return;
+    }
+    if(command.equals("cluster")) {
+      hero.cluster(opposing, random, result);
+      return;
+    }
+    if(command.equals("defend")) {
+      hero.defend(result);
+      return;
+    }
+    throw new RuntimeException("Unknown command: " + command);
+  }
+
+  /**
+   * Decides which party will go first, based on speed totals.
+   * If one party has greater total speed, they go first.
+   * If both parties have the same speed, each party has a 50% chance
+   * of going first.
+   * @param party0, the first of the two parties
+   * @param party1, the second of the two parties
+   * @param random, the random number generator to break a tie with
+   */
+  public static Party determineFirstParty(Party party0, Party party1,
+                                          RandomGenerator random) {
+    int speed0 = 0;
+    int speed1 = 0;
+
+    for(int i = 0; i < party0.getHeroes().length; i++) {
+      speed0 = speed0 + party0.getHeroes()[i].getSpeed();
+    }
+
+    for(int i = 0; i < party1.getHeroes().length; i++) {
+      speed1 = speed1 + party1.getHeroes()[i].getSpeed();
+    }
+
+    if(speed0 > speed1) {
+      return party0;
+    }
+    if(speed0 < speed1) {
+      return party1;
+    }
+    if(random.nextDouble() < 0.5) {
+      return party0;
+    }
+    return party1;
+  }
+
+  // Headless test battle between two computer controlled parties,
+  // optionally replaying the battle with the given seed
+  public static void main(String[] args) {
+    long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+    SplittableRandom random = new SplittableRandom(seed);
+
+    Hero[] heroes = new Hero[4];
+    heroes[0] = new Hero(95, 45, 85, 25, 10, 30, 25, "knight.png", "Knight");
+    heroes[1] = new Hero(55, 50, 60, 45, 25, 60, 80, "thief.png", "Thief");
+    heroes[2] = new Hero(65, 10, 45, 65, 90, 70, 55, "mage.png", "Mage");
+    heroes[3] = new Hero(55, 70, 30, 60, 15, 30, 95, "assassin.png", "Assassin");
+
+    Hero[] enemies = new Hero[4];
+    enemies[0] = new Hero(100, 80, 80, 30, 80, 70, 80, "skeleton.png", "Skeleton King");
+    enemies[1] = new Hero(85, 85, 60, 30, 60, 60, 25, "zombie.png", "Zombie");
+    enemies[2] = new Hero(90, 70, 60, 65, 85, 75, 60, "fireelemental.png", "Fire Elemental");
+    enemies[3] = new Hero(85, 65, 50, 70, 75, 65, 30, "ghost.png", "Ghost");
+
+    Party party0 = new Party(heroes);
+    Party party1 = new Party(enemies);
+    BattleEngine engine = new BattleEngine(party0, new RandomActionSource(random.split()),
+                                           party1, new RandomActionSource(random.split()),
+                                           random.split());
+    Party winner = engine.run();
+    System.out.println((winner == party0 ? "Heroes" : "Enemies") + " won in "
+                         + engine.getTurns() + " turns (seed " + seed + ").");
+  }
+}
@@ -0,0 +1,110 @@
+/*************************************************************************
+ *  Compilation:  javac BattleFrame.java
+ *
+ *  An immutable snapshot of everything shown on the battle screen: each
+ *  hero's image and health, the text in the textbox and where the
+ *  pointers are. Battle's logic thread publishes a new snapshot whenever
+ *  the battle or the player's selection changes, and its render thread
+ *  draws whichever snapshot is newest. As a snapshot never changes once
+ *  published, the render thread never sees a half-applied move and the
+ *  two threads need no lock.
+ *
+ *  Version 1.0
+ *************************************************************************/
+public final class BattleFrame {
+  private final String[][] images;
+  private final int[][] health;
+  private final int[][] maxHealth;
+  private final String text;
+  private final String command;
+  private final int ally;
+  private final int target;
+  private final int thinking;
+  private final long time;
+
+  /**
+   * Constructor - Copies the heroes' state from both parties, which must
+   * only be called on the thread changing them.
+   * @param controllable, the player's party, drawn on the left
+   * @param enemy, the enemy party, drawn on the right
+   * @param text, the text in the textbox, or null for none
+   * @param command, the move pointed at, or null for none
+   * @param ally, the index of the player's hero pointed at, or -1 for none
+   * @param target, the index of the enemy hero targeted, or -1 for none
+   * @param thinking, the index of the enemy hero choosing a move, or -1
+   */
+  public BattleFrame(Party controllable, Party enemy, String text, String command,
+                     int ally, int target, int thinking) {
+    Party[] parties = {controllable, enemy};
+    this.images = new String[2][];
+    this.health = new int[2][];
+    this.maxHealth = new int[2][];
+    for(int side = 0; side < 2; side++) {
+      Hero[] heroes = parties[side].getHeroes();
+      this.images[side] = new String[heroes.length];
+      this.health[side] = new int[heroes.length];
+      this.maxHealth[side] = new int[heroes.length];
+      for(int i = 0; i < heroes.length; i++) {
+        this.images[side][i] = heroes[i].getAliveImg();
+        this.health[side][i] = heroes[i].getCurrentHealth();
+        this.maxHealth[side][i] = heroes[i].getMaxHealth();
+      }
+    }
+    this.text = text;
+    this.command = command;
+    this.ally = ally;
+    this.target = target;
+    this.thinking = thinking;
+    this.time = System.nanoTime();
+  }
+
+  // Retrieves the number of heroes of a side, 0 for the player's and 1 for the enemy's
+  public int getSize(int side) {
+    return this.health[side].length;
+  }
+
+  // Retrieves the image of a hero
+  public String getImage(int side, int slot) {
+    return this.images[side][slot];
+  }
+
+  // Retrieves the current health of a hero
+  public int getHealth(int side, int slot) {
+    return this.health[side][slot];
+  }
+
+  // Retrieves the maximum health of a hero
+  public int getMaxHealth(int side, int slot) {
+    return this.maxHealth[side][slot];
+  }
+
+  // Retrieves the text in the textbox, or null for none
+  public String getText() {
+    return this.text;
+  }
+
+  // Retrieves the move pointed at, or null for none
+  public String getCommand() {
+    return this.command;
+  }
+
+  // Retrieves the index of the player's hero pointed at, or -1 for none
+  public int getAlly() {
+    return this.ally;
+  }
+
+  // Retrieves the index of the enemy hero targeted, or -1 for none
+  public int getTarget() {
+    return this.target;
+  }
+
+  // Retrieves the index of the enemy hero choosing a move, or -1 for none
+  public int getThinking() {
+    return this.thinking;
+  }
+
+  // Retrieves when the snapshot was taken, from System.nanoTime()
+  public long getTime() {
+    return this.time;
+  }
+}
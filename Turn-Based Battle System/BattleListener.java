@@ -0,0 +1,27 @@
+/*************************************************************************
+ *  Compilation:  javac BattleListener.java
+ *
+ *  Receives the results of a battle run by a BattleEngine as it happens.
+ *  The engine itself never draws anything; a user interface such as Battle
+ *  registers a listener to show each move and the parties' health.
+ *
+ *  Version 1.0
+ *************************************************************************/
+public interface BattleListener {
+  
+  /**
+   * Called after a hero has made a move. The result is reused by the
+   * engine for the next move, so it should not be kept after this call.
+   * @param acting, the party the hero belongs to
+   * @param heroIndex, the index of the hero in acting.getHeroes()
+   * @param result, the outcome of the move
+   */
+  void actionPerformed(Party acting, int heroIndex, ActionResult result);
+  
+  /**
+   * Called after every living hero of a party has had its move. With
+   * per-hero initiative order, called for both parties after every round.
+   * @param acting, the party whose turn just ended
+   */
+  void turnEnded(Party acting);
+}
@@ -0,0 +1,339 @@
+/*************************************************************************
+ *  Compilation:  javac BattleMetrics.java
+ *  Execution:    java -Dbattle.metrics.file=metrics.txt Battle
+ *
+ *  Counters and latency histograms of the engine and the user interface,
+ *  kept for the whole process:
+ *    - battles run to the end by BattleEngine, and the turns, attacks,
+ *      magic attacks, cluster attacks, defends, dodges and deaths in them,
+ *      counted when each battle ends
+ *    - the time from a keypress to the first frame drawn that reflects it, the
+ *      time taken by each PennDraw.picture call, and how many times
+ *      PennDraw copied its whole buffer to the screen rather than only
+ *      the part drawn on, reported by the PennDraw.Listener that Battle
+ *      sets
+ *
+ *  The metrics can be watched through JMX once register() is called, and
+ *  written every few seconds to a file in the OpenMetrics text format, for
+ *  Prometheus' node exporter or any other scraper, with startExporter().
+ *  Battle does both, writing the file named by the battle.metrics.file
+ *  system property every battle.metrics.period milliseconds (5000 by
+ *  default).
+ *
+ *  Counting is lock free, on any number of threads, and the engine counts
+ *  are added once per battle rather than once per move, so that the
+ *  simulations of Tournament, StatBalancer and MonteCarloActionSource run
+ *  at full speed. Running with -Dbattle.metrics=off turns every
+ *  count into a constant check the JIT compiler removes, for benchmarks.
+ *
+ *  Version 1.0
+ *************************************************************************/
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class BattleMetrics implements BattleMetricsMBean {
+  // False when run with -Dbattle.metrics=off
+  public static final boolean ENABLED = !("off".equals(System.getProperty("battle.metrics")));
+  // The name the metrics are registered under with JMX
+  public static final String OBJECT_NAME = "TurnBasedBattle:type=BattleMetrics";
+
+  private static final BattleMetrics INSTANCE = new BattleMetrics();
+
+  private static final LongAdder battles = new LongAdder();
+  private static final LongAdder turns = new LongAdder();
+  // Actions made, indexed by ActionResult.ATTACK, MAGIC, CLUSTER and DEFEND
+  private static final LongAdder[] actions = {
+    new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder()
+  };
+  private static final LongAdder dodges = new LongAdder();
+  private static final LongAdder deaths = new LongAdder();
+  private static final LongAdder fullCopies = new LongAdder();
+  private static final LatencyHistogram keyToRepaint = new LatencyHistogram();
+  private static final LatencyHistogram picture = new LatencyHistogram();
+  // System.nanoTime() of the oldest keypress not yet repainted, or 0 if none
+  private static final AtomicLong pendingKey = new AtomicLong();
+
+  private static ScheduledExecutorService exporter;
+
+  // Use getInstance
+  private BattleMetrics() {
+  }
+
+  /**
+   * Returns the metrics, as registered with JMX.
+   */
+  public static BattleMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Counts a battle run to the end, and the turns, actions, dodges and
+   * deaths it took. BattleEngine tallies these in plain fields while the
+   * battle runs and publishes them here once, so that counting costs the
+   * simulation nothing per move.
+   * @param turns, the number of turns started
+   * @param actions, the number of actions made, by ActionResult.ATTACK,
+   *        MAGIC, CLUSTER and DEFEND
+   * @param dodges, the number of attacks and magic attacks dodged
+   * @param deaths, the number of heroes killed
+   */
+  public static void recordBattle(int turns, int[] actions, int dodges, int deaths) {
+    if(ENABLED) {
+      BattleMetrics.battles.increment();
+      BattleMetrics.turns.add(turns);
+      for(int i = 0; i < actions.length; i++) {
+        BattleMetrics.actions[i].add(actions[i]);
+      }
+      BattleMetrics.dodges.add(dodges);
+      BattleMetrics.deaths.add(deaths);
+    }
+  }
+
+  // Counts a copy of the whole drawing buffer to the screen
+  public static void countFullCopy() {
+    if(ENABLED) {
+      fullCopies.increment();
+    }
+  }
+
+  /**
+   * Records the time taken to draw a picture.
+   * @param nanos, the time in nanoseconds
+   */
+  public static void recordPicture(long nanos) {
+    if(ENABLED) {
+      picture.record(nanos);
+    }
+  }
+
+  /**
+   * Notes that a key was typed. Only the first keypress since the last
+   * repaint is timed, as it is the one that has waited longest.
+   */
+  public static void keyTyped() {
+    if(ENABLED) {
+      pendingKey.compareAndSet(0, System.nanoTime() | 1);
+    }
+  }
+
+  /**
+   * Notes that the screen was repainted with a frame reflecting every key
+   * typed up to the given time, recording the time since the oldest
+   * keypress not yet repainted, if it was typed by then. Frames that only
+   * animate, or were built before the key was typed, leave it pending.
+   * @param reflected, the System.nanoTime() up to which the frame reflects keys
+   */
+  public static void repainted(long reflected) {
+    if(ENABLED) {
+      long typed = pendingKey.get();
+      if(typed != 0 && typed - reflected <= 0 && pendingKey.compareAndSet(typed, 0)) {
+        keyToRepaint.record(System.nanoTime() - typed);
+      }
+    }
+  }
+
+  /**
+   * Registers the metrics with the platform MBean server, if they are not
+   * registered yet, and returns their name.
+   */
+  public static synchronized ObjectName register() {
+    try {
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if(!(server.isRegistered(name))) {
+        server.registerMBean(INSTANCE, name);
+      }
+      return name;
+    }
+    catch(JMException e) {
+      throw new RuntimeException("Could not register the battle metrics.", e);
+    }
+  }
+
+  /**
+   * Writes the metrics to a file now and then every given period, on a
+   * daemon thread, until stopExporter() is called. The file is written
+   * whole and then moved into place, so a scraper never reads part of it.
+   * Replaces any exporter already started.
+   * @param file, the file to write the metrics to
+   * @param periodMillis, the time between writes in milliseconds
+   */
+  public static synchronized void startExporter(final Path file, long periodMillis) {
+    if(periodMillis <= 0) {
+      throw new RuntimeException("The export period must be positive.");
+    }
+    stopExporter();
+    exporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "battle-metrics-exporter");
+      thread.setDaemon(true);
+      return thread;
+    });
+    exporter.scheduleAtFixedRate(() -> {
+      try {
+        write(file);
+      }
+      catch(IOException e) {
+        System.err.println("Could not write the battle metrics: " + e);
+      }
+    }, 0, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops writing the metrics to a file, if they are being written.
+   */
+  public static synchronized void stopExporter() {
+    if(exporter != null) {
+      exporter.shutdownNow();
+      exporter = null;
+    }
+  }
+
+  /**
+   * Writes the metrics to a file in the OpenMetrics text format, through a
+   * temporary file moved into place.
+   * @param file, the file to write the metrics to
+   */
+  public static void write(Path file) throws IOException {
+    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    Files.write(temporary, toOpenMetrics().getBytes(StandardCharsets.UTF_8));
+    try {
+      Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch(AtomicMoveNotSupportedException e) {
+      Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Returns every metric in the OpenMetrics text format.
+   */
+  public static String toOpenMetrics() {
+    StringBuilder out = new StringBuilder();
+    appendCounter(out, "battle_battles", "Battles run to the end.", battles.sum());
+    appendCounter(out, "battle_turns", "Turns of battles run to the end.", turns.sum());
+    out.append("# TYPE battle_actions counter\n");
+    out.append("# HELP battle_actions Actions made by heroes, by type.\n");
+    String[] kinds = {"attack", "magic", "cluster", "defend"};
+    for(int i = 0; i < kinds.length; i++) {
+      out.append("battle_actions_total{type=\"").append(kinds[i]).append("\"} ")
+        .append(actions[i].sum()).append('\n');
+    }
+    appendCounter(out, "battle_dodges", "Attacks and magic attacks dodged.", dodges.sum());
+    appendCounter(out, "battle_deaths", "Heroes killed.", deaths.sum());
+    appendCounter(out, "battle_full_buffer_copies",
+                  "Copies of the whole drawing buffer to the screen.", fullCopies.sum());
+    keyToRepaint.appendOpenMetrics(out, "battle_key_to_repaint_seconds",
+                                   "Time from a keypress to the first repaint reflecting it.");
+    picture.appendOpenMetrics(out, "battle_picture_seconds",
+                              "Time taken by a PennDraw.picture call.");
+    out.append("# EOF\n");
+    return out.toString();
+  }
+
+  // Appends a counter in the OpenMetrics text format
+  private static void appendCounter(StringBuilder out, String name, String help, long value) {
+    out.append("# TYPE ").append(name).append(" counter\n");
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append(name).append("_total ").append(value).append('\n');
+  }
+
+  public long getBattles() {
+    return battles.sum();
+  }
+
+  public long getTurns() {
+    return turns.sum();
+  }
+
+  public long getAttacks() {
+    return actions[ActionResult.ATTACK].sum();
+  }
+
+  public long getMagicAttacks() {
+    return actions[ActionResult.MAGIC].sum();
+  }
+
+  public long getClusterAttacks() {
+    return actions[ActionResult.CLUSTER].sum();
+  }
+
+  public long getDefends() {
+    return actions[ActionResult.DEFEND].sum();
+  }
+
+  public long getDodges() {
+    return dodges.sum();
+  }
+
+  public long getDeaths() {
+    return deaths.sum();
+  }
+
+  public long getFullCopies() {
+    return fullCopies.sum();
+  }
+
+  public long getKeyToRepaintCount() {
+    return keyToRepaint.getCount();
+  }
+
+  public double getKeyToRepaintMeanMillis() {
+    return keyToRepaint.getMeanNanos() / 1e6;
+  }
+
+  public double getKeyToRepaintP99Millis() {
+    return keyToRepaint.getPercentileNanos(99) / 1e6;
+  }
+
+  public double getKeyToRepaintMaxMillis() {
+    return keyToRepaint.getMaxNanos() / 1e6;
+  }
+
+  public long getPictureCount() {
+    return picture.getCount();
+  }
+
+  public double getPictureMeanMicros() {
+    return picture.getMeanNanos() / 1e3;
+  }
+
+  public double getPictureP99Micros() {
+    return picture.getPercentileNanos(99) / 1e3;
+  }
+
+  public double getPictureMaxMicros() {
+    return picture.getMaxNanos() / 1e3;
+  }
+
+  public String getOpenMetrics() {
+    return toOpenMetrics();
+  }
+
+  public void reset() {
+    battles.reset();
+    turns.reset();
+    for(int i = 0; i < actions.length; i++) {
+      actions[i].reset();
+    }
+    dodges.reset();
+    deaths.reset();
+    fullCopies.reset();
+    keyToRepaint.reset();
+    picture.reset();
+    pendingKey.set(0);
+  }
+}
@@ -0,0 +1,70 @@
+/*************************************************************************
+ *  Compilation:  javac BattleMetricsMBean.java
+ *
+ *  The management interface of BattleMetrics, as seen through JMX, e.g.
+ *  in JConsole or VisualVM under TurnBasedBattle:type=BattleMetrics.
+ *  Counts are totals since the game started or since the last reset; the
+ *  engine counts include a battle only once it has ended.
+ *
+ *  Version 1.0
+ *************************************************************************/
+public interface BattleMetricsMBean {
+  // Retrieves the number of battles run to the end by BattleEngine
+  long getBattles();
+
+  // Retrieves the number of turns of the battles run to the end
+  long getTurns();
+
+  // Retrieves the number of normal attacks made
+  long getAttacks();
+
+  // Retrieves the number of magic attacks made
+  long getMagicAttacks();
+
+  // Retrieves the number of cluster attacks made
+  long getClusterAttacks();
+
+  // Retrieves the number of times a hero defended
+  long getDefends();
+
+  // Retrieves the number of attacks and magic attacks dodged
+  long getDodges();
+
+  // Retrieves the number of heroes killed
+  long getDeaths();
+
+  // Retrieves the number of times PennDraw copied its whole buffer to the screen
+  long getFullCopies();
+
+  // Retrieves the number of keypresses timed until the screen was repainted
+  long getKeyToRepaintCount();
+
+  // Retrieves the mean time from a keypress to the repaint showing it, in milliseconds
+  double getKeyToRepaintMeanMillis();
+
+  // Retrieves an upper bound of the 99th percentile of keypress to repaint times
+  double getKeyToRepaintP99Millis();
+
+  // Retrieves the longest time from a keypress to the repaint showing it, in milliseconds
+  double getKeyToRepaintMaxMillis();
+
+  // Retrieves the number of PennDraw.picture calls timed
+  long getPictureCount();
+
+  // Retrieves the mean time of a PennDraw.picture call, in microseconds
+  double getPictureMeanMicros();
+
+  // Retrieves an upper bound of the 99th percentile of PennDraw.picture times
+  double getPictureP99Micros();
+
+  // Retrieves the longest PennDraw.picture call, in microseconds
+  double getPictureMaxMicros();
+
+  // Retrieves every metric in the OpenMetrics text format
+  String getOpenMetrics();
+
+  /**
+   * Sets every count back to 0.
+   */
+  void reset();
+}
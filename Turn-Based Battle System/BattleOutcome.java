@@ -0,0 +1,103 @@
+/*************************************************************************
+ *  Compilation:  javac BattleOutcome.java
+ *
+ *  Result of a BattleSolver run: the exact probability that the first of
+ *  two parties wins or loses, by the turn the battle ends on, and the
+ *  probability left unresolved because the battle had not ended within
+ *  the solver's turn limit or was too unlikely to follow further.
+ *
+ *  Version 1.0
+ *************************************************************************/
+public class BattleOutcome {
+  private final double[] winsByTurn;
+  private final double[] lossesByTurn;
+  private final double unresolved;
+  private final long states;
+
+  /**
+   * Constructor
+   * @param winsByTurn, the probability that party 0 wins on each turn
+   * @param lossesByTurn, the probability that party 0 loses on each turn
+   * @param unresolved, the probability of battles that were not followed to their end
+   * @param states, the number of distinct battle states expanded
+   */
+  public BattleOutcome(double[] winsByTurn, double[] lossesByTurn,
+                       double unresolved, long states) {
+    if(winsByTurn.length != lossesByTurn.length) {
+      throw new RuntimeException("Wins and losses must cover the same turns.");
+    }
+    this.winsByTurn = winsByTurn.clone();
+    this.lossesByTurn = lossesByTurn.clone();
+    this.unresolved = unresolved;
+    this.states = states;
+  }
+
+  // Retrieves the probability that party 0 wins
+  public double getWinProbability() {
+    return sum(this.winsByTurn);
+  }
+
+  // Retrieves the probability that party 0 loses
+  public double getLossProbability() {
+    return sum(this.lossesByTurn);
+  }
+
+  // Retrieves the probability of battles not followed to their end
+  public double getUnresolvedProbability() {
+    return this.unresolved;
+  }
+
+  // Retrieves the number of distinct battle states expanded
+  public long getStates() {
+    return this.states;
+  }
+
+  /**
+   * Retrieves the probability that party 0 wins on each turn; element t
+   * is the probability that the battle ends with a win on turn t.
+   */
+  public double[] getWinsByTurn() {
+    return this.winsByTurn.clone();
+  }
+
+  /**
+   * Retrieves the probability that party 0 loses on each turn; element t
+   * is the probability that the battle ends with a loss on turn t.
+   */
+  public double[] getLossesByTurn() {
+    return this.lossesByTurn.clone();
+  }
+
+  /**
+   * Retrieves the mean number of turns of the battles that ended.
+   */
+  public double getMeanTurns() {
+    double ended = 0;
+    double turns = 0;
+    for(int t = 0; t < this.winsByTurn.length; t++) {
+      double p = this.winsByTurn[t] + this.lossesByTurn[t];
+      ended += p;
+      turns += t * p;
+    }
+    return ended == 0 ? 0 : turns / ended;
+  }
+
+  // Sums an array of probabilities
+  private static double sum(double[] probabilities) {
+    double sum = 0;
+    for(int t = 0; t < probabilities.length; t++) {
+      sum += probabilities[t];
+    }
+    return sum;
+  }
+
+  /**
+   * Returns the win and loss probabilities and the mean length of a battle.
+   */
+  public String toString() {
+    return String.format("P(win) %.12f, P(loss) %.12f, unresolved %.3e, "
+                           + "mean %.4f turns, %d states",
+                         this.getWinProbability(), this.getLossProbability(),
+                         this.unresolved, this.getMeanTurns(), this.states);
+  }
+}
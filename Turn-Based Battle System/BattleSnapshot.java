@@ -0,0 +1,219 @@
+/*************************************************************************
+ *  Compilation:  javac BattleSnapshot.java
+ *
+ *  Immutable record of the state of two battling parties, which can be
+ *  written back into their heroes at any time, e.g. to undo moves or to try
+ *  out a move and go back. Only what a battle changes is captured: each
+ *  hero's current health, attack, defense, speed, magic resistance and
+ *  whether it is alive and defending; names, images and fixed stats stay
+ *  with the heroes.
+ *
+ *  The state is stored in chunks of 8 heroes, each an int array. A snapshot
+ *  taken with update() reuses every chunk of the snapshot it is updated
+ *  from whose heroes have not changed since, so a series of snapshots of a
+ *  battle, such as an undo history, shares all but the chunks each move
+ *  touched, and taking a snapshot allocates only those chunks. As chunks
+ *  are never modified, a snapshot is copied by copying its reference and
+ *  can be used by any number of threads.
+ *
+ *  Restoring sets a hero's speed and alive state only if they differ, so
+ *  the parties' speed order and alive bitset, which follow their heroes,
+ *  are updated only for the heroes that changed.
+ *
+ *  Version 1.0
+ *************************************************************************/
+public class BattleSnapshot {
+  // Heroes per chunk
+  private static final int CHUNK_SIZE = 8;
+  // Values per hero, at these offsets
+  private static final int FIELDS = 6;
+  private static final int HEALTH = 0;
+  private static final int ATTACK = 1;
+  private static final int DEFENSE = 2;
+  private static final int SPEED = 3;
+  private static final int MAGIC_RESIST = 4;
+  private static final int FLAGS = 5;
+  // Flags of the FLAGS value
+  private static final int ALIVE = 1;
+  private static final int DEFENDING = 2;
+
+  private final Party party0;
+  private final Party party1;
+  private final int[][] chunks0;
+  private final int[][] chunks1;
+
+  // Used by capture and update
+  private BattleSnapshot(Party party0, Party party1, int[][] chunks0, int[][] chunks1) {
+    this.party0 = party0;
+    this.party1 = party1;
+    this.chunks0 = chunks0;
+    this.chunks1 = chunks1;
+  }
+
+  /**
+   * Returns a snapshot of the current state of two parties.
+   * @param party0, the first party
+   * @param party1, the second party
+   */
+  public static BattleSnapshot capture(Party party0, Party party1) {
+    return new BattleSnapshot(party0, party1, captureChunks(party0, null), captureChunks(party1, null));
+  }
+
+  /**
+   * Returns a snapshot of the current state of this snapshot's parties,
+   * sharing the chunks of heroes that have not changed with this one.
+   */
+  public BattleSnapshot update() {
+    int[][] chunks0 = captureChunks(this.party0, this.chunks0);
+    int[][] chunks1 = captureChunks(this.party1, this.chunks1);
+    if(chunks0 == this.chunks0 && chunks1 == this.chunks1) {
+      return this;
+    }
+    return new BattleSnapshot(this.party0, this.party1, chunks0, chunks1);
+  }
+
+  /**
+   * Puts this snapshot's parties back in the captured state.
+   */
+  public void restore() {
+    this.restore(this.party0, this.party1);
+  }
+
+  /**
+   * Puts two other parties in the captured state, e.g. copies of the
+   * captured parties made with Party.copy() to explore a branch of the
+   * battle with.
+   * @param party0, a party of as many heroes as the first captured party
+   * @param party1, a party of as many heroes as the second captured party
+   */
+  public void restore(Party party0, Party party1) {
+    if(party0.getHeroes().length != this.party0.getHeroes().length
+         || party1.getHeroes().length != this.party1.getHeroes().length) {
+      throw new RuntimeException("The parties must be the size of the captured ones.");
+    }
+    restoreChunks(party0, this.chunks0);
+    restoreChunks(party1, this.chunks1);
+  }
+
+  /**
+   * Returns the number of chunks this snapshot shares with another.
+   * @param other, a snapshot of the same parties
+   */
+  public int countSharedChunks(BattleSnapshot other) {
+    int shared = 0;
+    for(int c = 0; c < Math.min(this.chunks0.length, other.chunks0.length); c++) {
+      shared += this.chunks0[c] == other.chunks0[c] ? 1 : 0;
+    }
+    for(int c = 0; c < Math.min(this.chunks1.length, other.chunks1.length); c++) {
+      shared += this.chunks1[c] == other.chunks1[c] ? 1 : 0;
+    }
+    return shared;
+  }
+
+  // Retrieves the captured current health of a hero of party side (0 or 1)
+  public int getCurrentHealth(int side, int slot) {
+    return this.get(side, slot, HEALTH);
+  }
+
+  // Retrieves the captured defense of a hero of party side (0 or 1)
+  public int getDefense(int side, int slot) {
+    return this.get(side, slot, DEFENSE);
+  }
+
+  // Retrieves the captured magic resistance of a hero of party side (0 or 1)
+  public int getMagicResist(int side, int slot) {
+    return this.get(side, slot, MAGIC_RESIST);
+  }
+
+  // Retrieves whether or not a hero of party side (0 or 1) was alive
+  public boolean getAlive(int side, int slot) {
+    return (this.get(side, slot, FLAGS) & ALIVE) != 0;
+  }
+
+  // Retrieves whether or not a hero of party side (0 or 1) was defending
+  public boolean getDefending(int side, int slot) {
+    return (this.get(side, slot, FLAGS) & DEFENDING) != 0;
+  }
+
+  // Retrieves one captured value of a hero
+  private int get(int side, int slot, int field) {
+    int[][] chunks = side == 0 ? this.chunks0 : this.chunks1;
+    return chunks[slot / CHUNK_SIZE][(slot % CHUNK_SIZE) * FIELDS + field];
+  }
+
+  /**
+   * Returns the chunks of a party's current state, reusing those of the
+   * previous chunks, if given, that are unchanged; returns previous itself
+   * if nothing has changed.
+   */
+  private static int[][] captureChunks(Party party, int[][] previous) {
+    Hero[] heroes = party.getHeroes();
+    int count = (heroes.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    int[][] chunks = previous;
+    for(int c = 0; c < count; c++) {
+      int from = c * CHUNK_SIZE;
+      int to = Math.min(heroes.length, from + CHUNK_SIZE);
+      if(previous != null && matches(heroes, from, to, previous[c])) {
+        continue;
+      }
+      int[] chunk = new int[(to - from) * FIELDS];
+      for(int i = from; i < to; i++) {
+        Hero hero = heroes[i];
+        int k = (i - from) * FIELDS;
+        chunk[k + HEALTH] = hero.getCurrentHealth();
+        chunk[k + ATTACK] = hero.getAttack();
+        chunk[k + DEFENSE] = hero.getDefense();
+        chunk[k + SPEED] = hero.getSpeed();
+        chunk[k + MAGIC_RESIST] = hero.getMagicResist();
+        chunk[k + FLAGS] = flags(hero);
+      }
+      if(chunks == previous) {
+        chunks = previous == null ? new int[count][] : previous.clone();
+      }
+      chunks[c] = chunk;
+    }
+    return chunks;
+  }
+
+  // Returns true if the heroes from index from to index to are in the state of a chunk
+  private static boolean matches(Hero[] heroes, int from, int to, int[] chunk) {
+    for(int i = from; i < to; i++) {
+      Hero hero = heroes[i];
+      int k = (i - from) * FIELDS;
+      if(chunk[k + HEALTH] != hero.getCurrentHealth() || chunk[k + ATTACK] != hero.getAttack()
+           || chunk[k + DEFENSE] != hero.getDefense() || chunk[k + SPEED] != hero.getSpeed()
+           || chunk[k + MAGIC_RESIST] != hero.getMagicResist() || chunk[k + FLAGS] != flags(hero)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Puts a party's heroes in the state of its chunks
+  private static void restoreChunks(Party party, int[][] chunks) {
+    Hero[] heroes = party.getHeroes();
+    for(int i = 0; i < heroes.length; i++) {
+      Hero hero = heroes[i];
+      int[] chunk = chunks[i / CHUNK_SIZE];
+      int k = (i % CHUNK_SIZE) * FIELDS;
+      hero.setCurrentHealth(chunk[k + HEALTH]);
+      hero.setAttack(chunk[k + ATTACK]);
+      hero.setDefense(chunk[k + DEFENSE]);
+      hero.setMagicResist(chunk[k + MAGIC_RESIST]);
+      hero.setDefending((chunk[k + FLAGS] & DEFENDING) != 0);
+      // Only these two notify the party, so they are only set on a change
+      if(hero.getSpeed() != chunk[k + SPEED]) {
+        hero.setSpeed(chunk[k + SPEED]);
+      }
+      boolean alive = (chunk[k + FLAGS] & ALIVE) != 0;
+      if(hero.getAlive() != alive) {
+        hero.setAlive(alive);
+      }
+    }
+  }
+
+  // Packs whether or not a hero is alive and defending
+  private static int flags(Hero hero) {
+    return (hero.getAlive() ? ALIVE : 0) | (hero.getDefending() ? DEFENDING : 0);
+  }
+}
@@ -0,0 +1,409 @@
+/*************************************************************************
+ *  Compilation:  javac BattleSolver.java
+ *  Execution:    java -Djava.awt.headless=true BattleSolver [heroes] [minProbability] [threads]
+ *
+ *  Computes exactly how likely one party is to beat another, and on which
+ *  turn, when both parties move as the enemy party does in
+ *  Party.randomAttack, instead of estimating it from sampled battles as
+ *  WinRateEstimator does.
+ *
+ *  The only randomness in such a battle is the choice of move (35%
+ *  attack, 35% magic, 25% cluster, 5% defend), the choice of target (any
+ *  living opponent, equally likely), each dodge (evasion / 400), and the
+ *  coin toss for the first move between parties of equal total speed. The
+ *  solver follows the battle one hero's move at a time, keeping the
+ *  probability of every distinct battle state that can be reached so far:
+ *  every move splits each state into its possible outcomes, which are
+ *  applied with BattleState's combat kernels, and outcomes that lead to the
+ *  same health, defense, magic resistance, alive and defending values are
+ *  merged in a transposition table keyed on BattleState.encode. Once a
+ *  party is defeated the state's probability is added to the win or loss
+ *  probability of that turn.
+ *
+ *  Defending without being hit leads to new states for ever, with ever
+ *  smaller probability, so states less likely than minProbability are
+ *  dropped, as are the states left after maxTurns turns, and their
+ *  probability is reported as unresolved: the true win probability lies
+ *  between the win probability found and that plus the unresolved
+ *  probability. The states of each move are expanded in parallel with
+ *  fork/join; the work is split the same way whatever the number of
+ *  threads, so the answer is always the same.
+ *
+ *  Every move splits a state once per living opponent, and a cluster once
+ *  per subset of living opponents, and different damage rolls rarely lead
+ *  to the same health, so the number of states grows very quickly with
+ *  the size of the parties. One on one battles are solved, leaving under
+ *  1e-7 unresolved, in a few seconds. Two on two battles already reach millions
+ *  of states, with much of the probability left unresolved unless
+ *  minProbability is tiny and the memory large; for those, and for four on
+ *  four, WinRateEstimator is the better tool.
+ *
+ *  Version 1.0
+ *************************************************************************/
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+public class BattleSolver {
+
+  // Chances of each move, as Party.randomCommandIndex choses them
+  private static final double[] COMMAND_CHANCES = {0.35, 0.35, 0.25, 0.05};
+
+  // Most states expanded by one fork/join task without splitting it
+  private static final int SPLIT_SIZE = 512;
+
+  // Largest party solved; a cluster's subsets of targets are counted in an int
+  private static final int MAX_PARTY_SIZE = 30;
+
+  /**
+   * Solves a battle between two parties, dropping states less likely than
+   * a trillionth, using every available core.
+   * @param party0, the party whose chances are computed
+   * @param party1, the opposing party
+   */
+  public static BattleOutcome solve(Party party0, Party party1) {
+    return solve(party0, party1, 1000, 1e-12, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Solves a battle between two parties of at most 30 heroes each. The
+   * parties are not changed.
+   * @param party0, the party whose chances are computed
+   * @param party1, the opposing party
+   * @param maxTurns, the most turns to follow a battle for
+   * @param minProbability, the probability below which states are dropped
+   * @param threads, the number of fork/join worker threads
+   */
+  public static BattleOutcome solve(Party party0, Party party1, int maxTurns,
+                                    double minProbability, int threads) {
+    if(maxTurns <= 0 || threads <= 0) {
+      throw new RuntimeException("Turns and threads must both be at least 1.");
+    }
+    BattleState initial = new BattleState(party0, party1);
+    if(initial.isDefeated(0) || initial.isDefeated(1)) {
+      throw new RuntimeException("Both parties need a living hero.");
+    }
+    if(initial.getSize(0) > MAX_PARTY_SIZE || initial.getSize(1) > MAX_PARTY_SIZE) {
+      throw new RuntimeException("Parties of more than " + MAX_PARTY_SIZE
+                                 + " heroes cannot be solved.");
+    }
+
+    double[] wins = new double[maxTurns + 1];
+    double[] losses = new double[maxTurns + 1];
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      int speed0 = 0;
+      int speed1 = 0;
+      for(int i = 0; i < initial.getSize(0); i++) {
+        speed0 += initial.getSpeed(initial.getIndex(0, i));
+      }
+      for(int i = 0; i < initial.getSize(1); i++) {
+        speed1 += initial.getSpeed(initial.getIndex(1, i));
+      }
+
+      // The faster party moves first; a tie is a coin toss
+      Solution solution;
+      if(speed0 != speed1) {
+        solution = solve(pool, initial, speed0 > speed1 ? 0 : 1, 1.0, maxTurns,
+                         minProbability, wins, losses);
+      }
+      else {
+        solution = solve(pool, initial, 0, 0.5, maxTurns, minProbability, wins, losses);
+        solution.add(solve(pool, initial, 1, 0.5, maxTurns, minProbability, wins, losses));
+      }
+      return new BattleOutcome(wins, losses, solution.unresolved, solution.states);
+    }
+    finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Follows the battle, given which party moves first, and adds the
+   * probability of each ending, weighted, to wins and losses.
+   */
+  private static Solution solve(ForkJoinPool pool, BattleState initial, int first,
+                                double weight, int maxTurns, double minProbability,
+                                double[] wins, double[] losses) {
+    int second = 1 - first;
+    int[] key = new int[initial.getEncodedLength()];
+    initial.encode(key);
+    Node[] frontier = {new Node(key, weight)};
+
+    Solution solution = new Solution();
+    for(int turn = 1; turn <= maxTurns && frontier.length > 0; turn++) {
+      int moves = initial.getSize(first) + initial.getSize(second);
+      for(int move = 0; move < moves && frontier.length > 0; move++) {
+        int side = move < initial.getSize(first) ? first : second;
+        int rank = side == first ? move : move - initial.getSize(first);
+        Expansion expansion = pool.invoke(new Expansion(initial, frontier, 0,
+                                                        frontier.length, side, rank));
+        solution.states += frontier.length;
+        wins[turn] += expansion.won;
+        losses[turn] += expansion.lost;
+        frontier = prune(expansion.next, minProbability, solution);
+      }
+    }
+    for(int i = 0; i < frontier.length; i++) {
+      solution.unresolved += frontier[i].probability;
+    }
+    return solution;
+  }
+
+  /**
+   * Returns the states of a map at least as likely as the given minimum,
+   * adding the probability of the others to the unresolved probability.
+   */
+  private static Node[] prune(Map<Node, Node> states, double minProbability,
+                              Solution solution) {
+    Node[] nodes = new Node[states.size()];
+    int count = 0;
+    for(Node node : states.keySet()) {
+      if(node.probability < minProbability) {
+        solution.unresolved += node.probability;
+      }
+      else {
+        nodes[count++] = node;
+      }
+    }
+    return Arrays.copyOf(nodes, count);
+  }
+
+  /**
+   * Totals of a solver run other than the wins and losses.
+   */
+  private static class Solution {
+    private double unresolved;
+    private long states;
+
+    void add(Solution other) {
+      this.unresolved += other.unresolved;
+      this.states += other.states;
+    }
+  }
+
+  /**
+   * A battle state, as encoded by BattleState.encode, and the probability
+   * of reaching it. Nodes are equal when their states are.
+   */
+  private static class Node {
+    private final int[] key;
+    private final int hash;
+    private double probability;
+
+    Node(int[] key, double probability) {
+      this.key = key;
+      this.hash = Arrays.hashCode(key);
+      this.probability = probability;
+    }
+
+    public int hashCode() {
+      return this.hash;
+    }
+
+    public boolean equals(Object other) {
+      return other instanceof Node && this.hash == ((Node) other).hash
+        && Arrays.equals(this.key, ((Node) other).key);
+    }
+  }
+
+  /**
+   * Makes the hero of the given rank in a party move in every state of a
+   * range of the frontier, splitting the range in two while it is large.
+   */
+  // Never serialized; ForkJoinTask is only Serializable by inheritance
+  @SuppressWarnings("serial")
+  private static class Expansion extends RecursiveTask<Expansion> {
+    private final BattleState initial;
+    private final Node[] frontier;
+    private final int from;
+    private final int to;
+    private final int side;
+    private final int rank;
+    private Map<Node, Node> next;
+    private double won;
+    private double lost;
+
+    // Scratch state and key, used only while expanding
+    private BattleState state;
+    private int[] key;
+
+    Expansion(BattleState initial, Node[] frontier, int from, int to, int side, int rank) {
+      this.initial = initial;
+      this.frontier = frontier;
+      this.from = from;
+      this.to = to;
+      this.side = side;
+      this.rank = rank;
+    }
+
+    protected Expansion compute() {
+      if(this.to - this.from > SPLIT_SIZE) {
+        int middle = (this.from + this.to) >>> 1;
+        Expansion left = new Expansion(this.initial, this.frontier, this.from, middle,
+                                       this.side, this.rank);
+        Expansion right = new Expansion(this.initial, this.frontier, middle, this.to,
+                                        this.side, this.rank);
+        left.fork();
+        Expansion rightResult = right.compute();
+        Expansion leftResult = left.join();
+        leftResult.merge(rightResult);
+        return leftResult;
+      }
+
+      this.next = new HashMap<Node, Node>();
+      this.state = this.initial.copy();
+      this.key = new int[this.initial.getEncodedLength()];
+      for(int i = this.from; i < this.to; i++) {
+        this.expand(this.frontier[i]);
+      }
+      this.state = null;
+      this.key = null;
+      return this;
+    }
+
+    // Adds another expansion's results to this one's
+    private void merge(Expansion other) {
+      this.won += other.won;
+      this.lost += other.lost;
+      Map<Node, Node> larger = this.next.size() >= other.next.size() ? this.next : other.next;
+      Map<Node, Node> smaller = larger == this.next ? other.next : this.next;
+      // The smaller map is discarded, so its nodes can be moved over
+      for(Node node : smaller.keySet()) {
+        Node existing = larger.putIfAbsent(node, node);
+        if(existing != null) {
+          existing.probability += node.probability;
+        }
+      }
+      this.next = larger;
+    }
+
+    // Splits a state into the outcomes of the move of the hero to move
+    private void expand(Node node) {
+      BattleState state = this.state;
+      int other = 1 - this.side;
+      state.decode(node.key);
+      int actor = state.getIndex(this.side, state.getSlotBySpeed(this.side, this.rank));
+      if(!(state.getAlive(actor))) {
+        add(this.next, node, node.probability);
+        return;
+      }
+
+      int[] targets = new int[state.getAliveCount(other)];
+      int count = 0;
+      for(int slot = 0; slot < state.getSize(other); slot++) {
+        if(state.getAlive(state.getIndex(other, slot))) {
+          targets[count++] = state.getIndex(other, slot);
+        }
+      }
+
+      // Attack and magic: a random living target, who may dodge
+      for(int command = BattleState.ATTACK; command <= BattleState.MAGIC; command++) {
+        double chance = node.probability * COMMAND_CHANCES[command] / targets.length;
+        for(int t = 0; t < targets.length; t++) {
+          double dodge = state.getDodgeChance(targets[t]);
+          if(dodge > 0) {
+            add(this.next, node, chance * dodge);
+          }
+          if(dodge < 1) {
+            state.decode(node.key);
+            if(command == BattleState.ATTACK) {
+              state.applyAttack(actor, targets[t], false);
+            }
+            else {
+              state.applyMagic(actor, targets[t]);
+            }
+            this.emit(chance * (1 - dodge));
+          }
+        }
+      }
+
+      // Cluster: every living target dodges or is hit on its own
+      double chance = node.probability * COMMAND_CHANCES[BattleState.CLUSTER];
+      for(int hits = 0; hits < 1 << targets.length; hits++) {
+        double p = chance;
+        state.decode(node.key);
+        for(int t = 0; t < targets.length; t++) {
+          double dodge = state.getDodgeChance(targets[t]);
+          if((hits & (1 << t)) != 0) {
+            p *= 1 - dodge;
+            state.applyAttack(actor, targets[t], true);
+          }
+          else {
+            p *= dodge;
+          }
+        }
+        if(p > 0) {
+          this.emit(p);
+        }
+      }
+
+      // Defend
+      state.decode(node.key);
+      state.defend(actor);
+      this.emit(node.probability * COMMAND_CHANCES[BattleState.DEFEND]);
+    }
+
+    // Records the scratch state as an outcome with the given probability
+    private void emit(double probability) {
+      if(this.state.isDefeated(1)) {
+        this.won += probability;
+        return;
+      }
+      if(this.state.isDefeated(0)) {
+        this.lost += probability;
+        return;
+      }
+      this.state.encode(this.key);
+      if(add(this.next, new Node(this.key, 0), probability)) {
+        this.key = new int[this.key.length];
+      }
+    }
+
+    // Adds probability to the node of a map equal to the given node, first
+    // inserting a new node with the same key if there is none, and returns
+    // true if a node was inserted
+    private static boolean add(Map<Node, Node> map, Node probe, double probability) {
+      Node existing = map.get(probe);
+      if(existing != null) {
+        existing.probability += probability;
+        return false;
+      }
+      Node node = new Node(probe.key, probability);
+      map.put(node, node);
+      return true;
+    }
+  }
+
+  // Solves a battle between the first heroes of each party from Battle.main,
+  // one on one unless another number of heroes is given
+  public static void main(String[] args) {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+    double minProbability = args.length > 1 ? Double.parseDouble(args[1]) : 1e-12;
+    int threads = args.length > 2 ? Integer.parseInt(args[2])
+                                  : Runtime.getRuntime().availableProcessors();
+
+    Hero[] heroes = new Hero[4];
+    heroes[0] = new Hero(95, 45, 85, 25, 10, 30, 25, "knight.png", "Knight");
+    heroes[1] = new Hero(55, 50, 60, 45, 25, 60, 80, "thief.png", "Thief");
+    heroes[2] = new Hero(65, 10, 45, 65, 90, 70, 55, "mage.png", "Mage");
+    heroes[3] = new Hero(55, 70, 30, 60, 15, 30, 95, "assassin.png", "Assassin");
+
+    Hero[] enemies = new Hero[4];
+    enemies[0] = new Hero(100, 80, 80, 30, 80, 70, 80, "skeleton.png", "Skeleton King");
+    enemies[1] = new Hero(85, 85, 60, 30, 60, 60, 25, "zombie.png", "Zombie");
+    enemies[2] = new Hero(90, 70, 60, 65, 85, 75, 60, "fireelemental.png", "Fire Elemental");
+    enemies[3] = new Hero(85, 65, 50, 70, 75, 65, 30, "ghost.png", "Ghost");
+
+    long start = System.nanoTime();
+    BattleOutcome outcome = solve(new Party(Arrays.copyOf(heroes, size)),
+                                  new Party(Arrays.copyOf(enemies, size)), 1000,
+                                  minProbability, threads);
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    System.out.println(outcome);
+    System.out.printf("solved in %.2f seconds%n", seconds);
+  }
+}
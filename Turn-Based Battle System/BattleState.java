@@ -0,0 +1,602 @@
+/*************************************************************************
+ *  Compilation:  javac BattleState.java
+ *
+ *  Compact state of a battle between two parties, for bulk simulation.
+ *  Instead of two arrays of Hero objects, the state of every hero is kept
+ *  in flat primitive arrays, one per stat, with hero i of party 0 at index i
+ *  and hero j of party 1 at index size0 + j. Whether each hero is alive or
+ *  defending is kept in a bitset. The combat kernels below apply exactly the
+ *  rules of Hero.attack, Hero.magic, Hero.cluster and Hero.defend to these
+ *  arrays, and simulate() plays a whole battle the way a BattleEngine with a
+ *  RandomActionSource on each side does, rolling the same random numbers in
+ *  the same order.
+ *
+ *  A state converts losslessly to and from the Party and Hero objects it
+ *  was created from: stats that Hero cannot change (maximum health, evasion,
+ *  magic, name and images) are taken from the original parties.
+ *
+ *  Version 1.0
+ *************************************************************************/
+import java.util.random.RandomGenerator;
+
+public class BattleState {
+  // Move codes, the indices of Party.COMMANDS
+  public static final int ATTACK = 0;
+  public static final int MAGIC = 1;
+  public static final int CLUSTER = 2;
+  public static final int DEFEND = 3;
+
+  private final Party template0;
+  private final Party template1;
+  private final int size0;
+  private final int size1;
+
+  private final int[] currentHealth;
+  private final int[] maxHealth;
+  private final int[] attack;
+  private final int[] defense;
+  private final int[] evasion;
+  private final int[] speed;
+  private final int[] magic;
+  private final int[] magicResist;
+  private final long[] alive;
+  private final long[] defending;
+  // The slots of each party in its speed order, party 1's after party 0's
+  private final int[] order;
+
+  private int turns;
+
+  /**
+   * Constructor - Captures the current state of two parties.
+   * @param party0, the first party, stored at indices 0 to size0 - 1
+   * @param party1, the second party, stored after the first
+   */
+  public BattleState(Party party0, Party party1) {
+    this.template0 = party0;
+    this.template1 = party1;
+    this.size0 = party0.getHeroes().length;
+    this.size1 = party1.getHeroes().length;
+
+    int n = this.size0 + this.size1;
+    this.currentHealth = new int[n];
+    this.maxHealth = new int[n];
+    this.attack = new int[n];
+    this.defense = new int[n];
+    this.evasion = new int[n];
+    this.speed = new int[n];
+    this.magic = new int[n];
+    this.magicResist = new int[n];
+    this.alive = new long[(n + 63) >>> 6];
+    this.defending = new long[(n + 63) >>> 6];
+    this.order = new int[n];
+
+    this.readFrom(party0, party1);
+  }
+
+  // Copy constructor, used by copy()
+  private BattleState(BattleState other) {
+    this.template0 = other.template0;
+    this.template1 = other.template1;
+    this.size0 = other.size0;
+    this.size1 = other.size1;
+    this.currentHealth = other.currentHealth.clone();
+    this.maxHealth = other.maxHealth.clone();
+    this.attack = other.attack.clone();
+    this.defense = other.defense.clone();
+    this.evasion = other.evasion.clone();
+    this.speed = other.speed.clone();
+    this.magic = other.magic.clone();
+    this.magicResist = other.magicResist.clone();
+    this.alive = other.alive.clone();
+    this.defending = other.defending.clone();
+    this.order = other.order.clone();
+    this.turns = other.turns;
+  }
+
+  /**
+   * Returns an independent copy of this state.
+   */
+  public BattleState copy() {
+    return new BattleState(this);
+  }
+
+  /**
+   * Overwrites this state with another state of the same two parties,
+   * without allocating.
+   * @param other, the state to copy
+   */
+  public void copyFrom(BattleState other) {
+    if(other.size0 != this.size0 || other.size1 != this.size1) {
+      throw new RuntimeException("Both states must have parties of the same sizes.");
+    }
+    int n = this.size0 + this.size1;
+    System.arraycopy(other.currentHealth, 0, this.currentHealth, 0, n);
+    System.arraycopy(other.maxHealth, 0, this.maxHealth, 0, n);
+    System.arraycopy(other.attack, 0, this.attack, 0, n);
+    System.arraycopy(other.defense, 0, this.defense, 0, n);
+    System.arraycopy(other.evasion, 0, this.evasion, 0, n);
+    System.arraycopy(other.speed, 0, this.speed, 0, n);
+    System.arraycopy(other.magic, 0, this.magic, 0, n);
+    System.arraycopy(other.magicResist, 0, this.magicResist, 0, n);
+    System.arraycopy(other.alive, 0, this.alive, 0, this.alive.length);
+    System.arraycopy(other.defending, 0, this.defending, 0, this.defending.length);
+    System.arraycopy(other.order, 0, this.order, 0, n);
+    this.turns = other.turns;
+  }
+
+  /**
+   * Overwrites this state with the current state of two parties, which
+   * must have the sizes of the parties this state was created from.
+   * @param party0, the first party
+   * @param party1, the second party
+   */
+  public void readFrom(Party party0, Party party1) {
+    if(party0.getHeroes().length != this.size0 || party1.getHeroes().length != this.size1) {
+      throw new RuntimeException("Both parties must keep their sizes.");
+    }
+    for(int i = 0; i < this.size0; i++) {
+      this.read(i, party0.getHeroes()[i]);
+    }
+    for(int i = 0; i < this.size1; i++) {
+      this.read(this.size0 + i, party1.getHeroes()[i]);
+    }
+    System.arraycopy(party0.getSpeedOrder(), 0, this.order, 0, this.size0);
+    System.arraycopy(party1.getSpeedOrder(), 0, this.order, this.size0, this.size1);
+    this.turns = 0;
+  }
+
+  /**
+   * Writes this state back into the heroes of two parties, which must
+   * have the sizes of the parties this state was created from.
+   * @param party0, the party to receive the state of the first party
+   * @param party1, the party to receive the state of the second party
+   */
+  public void writeTo(Party party0, Party party1) {
+    if(party0.getHeroes().length != this.size0 || party1.getHeroes().length != this.size1) {
+      throw new RuntimeException("Both parties must keep their sizes.");
+    }
+    for(int i = 0; i < this.size0; i++) {
+      this.write(i, party0.getHeroes()[i]);
+    }
+    for(int i = 0; i < this.size1; i++) {
+      this.write(this.size0 + i, party1.getHeroes()[i]);
+    }
+  }
+
+  /**
+   * Returns two new parties, copies of the parties this state was created
+   * from, holding this state.
+   */
+  public Party[] toParties() {
+    Party[] parties = new Party[2];
+    parties[0] = this.template0.copy();
+    parties[1] = this.template1.copy();
+    this.writeTo(parties[0], parties[1]);
+    return parties;
+  }
+
+  /**
+   * Retrieves the length of the arrays that encode and decode use.
+   */
+  public int getEncodedLength() {
+    return 4 * (this.size0 + this.size1);
+  }
+
+  /**
+   * Writes everything the combat kernels can change (health, defense,
+   * magic resistance, alive and defending) into an array, so that two
+   * states of the same parties are equal exactly when their arrays are.
+   * @param key, an array of length getEncodedLength()
+   */
+  public void encode(int[] key) {
+    for(int i = 0; i < this.size0 + this.size1; i++) {
+      key[4 * i] = this.currentHealth[i];
+      key[4 * i + 1] = this.defense[i];
+      key[4 * i + 2] = this.magicResist[i];
+      key[4 * i + 3] = (getBit(this.alive, i) ? 1 : 0) | (getBit(this.defending, i) ? 2 : 0);
+    }
+  }
+
+  /**
+   * Overwrites this state with an array written by encode on a state of
+   * the same parties.
+   * @param key, an array of length getEncodedLength()
+   */
+  public void decode(int[] key) {
+    for(int i = 0; i < this.size0 + this.size1; i++) {
+      this.currentHealth[i] = key[4 * i];
+      this.defense[i] = key[4 * i + 1];
+      this.magicResist[i] = key[4 * i + 2];
+      setBit(this.alive, i, (key[4 * i + 3] & 1) != 0);
+      setBit(this.defending, i, (key[4 * i + 3] & 2) != 0);
+    }
+  }
+
+  // Stores a hero's state at the given index
+  private void read(int i, Hero hero) {
+    this.currentHealth[i] = hero.getCurrentHealth();
+    this.maxHealth[i] = hero.getMaxHealth();
+    this.attack[i] = hero.getAttack();
+    this.defense[i] = hero.getDefense();
+    this.evasion[i] = hero.getEvasion();
+    this.speed[i] = hero.getSpeed();
+    this.magic[i] = hero.getMagic();
+    this.magicResist[i] = hero.getMagicResist();
+    setBit(this.alive, i, hero.getAlive());
+    setBit(this.defending, i, hero.getDefending());
+  }
+
+  // Stores the state at the given index in a hero
+  private void write(int i, Hero hero) {
+    hero.setCurrentHealth(this.currentHealth[i]);
+    hero.setAttack(this.attack[i]);
+    hero.setDefense(this.defense[i]);
+    hero.setSpeed(this.speed[i]);
+    hero.setMagicResist(this.magicResist[i]);
+    hero.setAlive(getBit(this.alive, i));
+    hero.setDefending(getBit(this.defending, i));
+  }
+
+  // Retrieves the number of heroes in the given party (0 or 1)
+  public int getSize(int side) {
+    return side == 0 ? this.size0 : this.size1;
+  }
+
+  /**
+   * Returns the index in this state of a hero.
+   * @param side, the party the hero is in (0 or 1)
+   * @param slot, the index of the hero in its party's getHeroes() array
+   */
+  public int getIndex(int side, int slot) {
+    return side == 0 ? slot : this.size0 + slot;
+  }
+
+  // Retrieves the number of turns started by the last call to simulate
+  public int getTurns() {
+    return this.turns;
+  }
+
+  // Retrieves the current health of the hero at the given index
+  public int getCurrentHealth(int i) {
+    return this.currentHealth[i];
+  }
+
+  // Retrieves the maximum health of the hero at the given index
+  public int getMaxHealth(int i) {
+    return this.maxHealth[i];
+  }
+
+  // Retrieves the attack points of the hero at the given index
+  public int getAttack(int i) {
+    return this.attack[i];
+  }
+
+  // Retrieves the defense points of the hero at the given index
+  public int getDefense(int i) {
+    return this.defense[i];
+  }
+
+  // Retrieves the evasion points of the hero at the given index
+  public int getEvasion(int i) {
+    return this.evasion[i];
+  }
+
+  // Retrieves the speed points of the hero at the given index
+  public int getSpeed(int i) {
+    return this.speed[i];
+  }
+
+  // Retrieves the magic points of the hero at the given index
+  public int getMagic(int i) {
+    return this.magic[i];
+  }
+
+  // Retrieves the magic resistance points of the hero at the given index
+  public int getMagicResist(int i) {
+    return this.magicResist[i];
+  }
+
+  // Retrieves whether or not the hero at the given index is alive
+  public boolean getAlive(int i) {
+    return getBit(this.alive, i);
+  }
+
+  // Retrieves whether or not the hero at the given index is defending
+  public boolean getDefending(int i) {
+    return getBit(this.defending, i);
+  }
+
+  /**
+   * Returns the slot of a party's hero with the given rank in the party's
+   * speed order, as it was when the state was read from the party.
+   * @param side, the party (0 or 1)
+   * @param rank, the position in the speed order, 0 for the slowest hero
+   */
+  public int getSlotBySpeed(int side, int rank) {
+    return this.order[this.getIndex(side, rank)];
+  }
+
+  /**
+   * Returns true if every hero of the given party is dead.
+   * @param side, the party to check (0 or 1)
+   */
+  public boolean isDefeated(int side) {
+    int from = this.getIndex(side, 0);
+    return countBits(this.alive, from, from + this.getSize(side)) == 0;
+  }
+
+  /**
+   * Returns the number of living heroes in the given party.
+   * @param side, the party to count (0 or 1)
+   */
+  public int getAliveCount(int side) {
+    int from = this.getIndex(side, 0);
+    return countBits(this.alive, from, from + this.getSize(side));
+  }
+
+  /**
+   * Returns the chance, from 0 to 1, that the hero at the given index
+   * dodges an attack or magic attack.
+   * @param i, the index of the targeted hero
+   */
+  public double getDodgeChance(int i) {
+    return Math.min(1.0, this.evasion[i] * 0.25 / 100);
+  }
+
+  /*************************************************************************
+   *  Combat kernels
+   *************************************************************************/
+
+  /**
+   * Rolls whether the hero at the given index dodges, as Hero.attack does.
+   * @param target, the index of the targeted hero
+   * @param random, the random number generator to roll with
+   */
+  public boolean rollDodge(int target, RandomGenerator random) {
+    return random.nextDouble() * 100 <= this.evasion[target] * 0.25;
+  }
+
+  /**
+   * Attacks a hero with a normal attack, as Hero.attack does.
+   * @param actor, the index of the attacking hero
+   * @param target, the index of the attacked hero
+   * @param cluster, true if the attack is part of a cluster attack
+   * @param random, the random number generator to roll the dodge with
+   */
+  public void attack(int actor, int target, boolean cluster, RandomGenerator random) {
+    if(this.rollDodge(target, random)) {
+      return;
+    }
+    this.applyAttack(actor, target, cluster);
+  }
+
+  /**
+   * Attacks a hero with a magic attack, as Hero.magic does.
+   * @param actor, the index of the attacking hero
+   * @param target, the index of the attacked hero
+   * @param random, the random number generator to roll the dodge with
+   */
+  public void magic(int actor, int target, RandomGenerator random) {
+    if(this.rollDodge(target, random)) {
+      return;
+    }
+    this.applyMagic(actor, target);
+  }
+
+  /**
+   * Attacks every hero of the other party, as Hero.cluster does.
+   * @param actor, the index of the attacking hero
+   * @param random, the random number generator to roll the dodges with
+   */
+  public void cluster(int actor, RandomGenerator random) {
+    int side = actor < this.size0 ? 1 : 0;
+    int from = this.getIndex(side, 0);
+    int to = from + this.getSize(side);
+    for(int target = from; target < to; target++) {
+      this.attack(actor, target, true, random);
+    }
+  }
+
+  /**
+   * Applies an attack that was not dodged.
+   * @param actor, the index of the attacking hero
+   * @param target, the index of the attacked hero
+   * @param cluster, true if the attack is part of a cluster attack
+   */
+  public void applyAttack(int actor, int target, boolean cluster) {
+    int base = cluster ? 3 : 20;
+    this.applyDamage(target, base + Math.abs(this.attack[actor] - this.defense[target]) / 3);
+  }
+
+  /**
+   * Applies a magic attack that was not dodged.
+   * @param actor, the index of the attacking hero
+   * @param target, the index of the attacked hero
+   */
+  public void applyMagic(int actor, int target) {
+    this.applyDamage(target, 25 + Math.abs(this.magic[actor] - this.magicResist[target]) / 3);
+  }
+
+  /**
+   * Doubles a hero's defense and magic resistance until it is next hit,
+   * as Hero.defend does.
+   * @param actor, the index of the defending hero
+   */
+  public void defend(int actor) {
+    this.defense[actor] = 2 * this.defense[actor];
+    this.magicResist[actor] = 2 * this.magicResist[actor];
+    setBit(this.defending, actor, true);
+  }
+
+  // Deals damage to a hero, killing it or ending its defense
+  private void applyDamage(int target, int damage) {
+    if(damage >= this.currentHealth[target]) {
+      this.currentHealth[target] = 0;
+      setBit(this.alive, target, false);
+      return;
+    }
+    this.currentHealth[target] -= damage;
+    if(getBit(this.defending, target)) {
+      this.defense[target] = this.defense[target] / 2;
+      this.magicResist[target] = this.magicResist[target] / 2;
+      setBit(this.defending, target, false);
+    }
+  }
+
+  /*************************************************************************
+   *  Simulation
+   *************************************************************************/
+
+  /**
+   * Plays a whole battle with both parties moving at random, exactly as a
+   * BattleEngine given the same three generators and a RandomActionSource
+   * per party would, and returns the winning party (0 or 1).
+   * @param random, the generator for dodges and the first move coin toss
+   * @param random0, the generator for party 0's choice of moves
+   * @param random1, the generator for party 1's choice of moves
+   */
+  public int simulate(RandomGenerator random, RandomGenerator random0,
+                      RandomGenerator random1) {
+    int first = this.determineFirstSide(random);
+    int second = 1 - first;
+    RandomGenerator firstRandom = first == 0 ? random0 : random1;
+    RandomGenerator secondRandom = first == 0 ? random1 : random0;
+
+    this.turns = 0;
+    while(!(this.isDefeated(0)) && !(this.isDefeated(1))) {
+      this.turns++;
+      this.playRandomTurn(first, firstRandom, random);
+      if(this.isDefeated(second)) {
+        break;
+      }
+      this.playRandomTurn(second, secondRandom, random);
+    }
+    return this.isDefeated(0) ? 1 : 0;
+  }
+
+  /**
+   * Returns the party (0 or 1) that moves first, as
+   * BattleEngine.determineFirstParty decides it.
+   * @param random, the generator to break a tie with
+   */
+  public int determineFirstSide(RandomGenerator random) {
+    int speed0 = 0;
+    int speed1 = 0;
+    for(int i = 0; i < this.size0; i++) {
+      speed0 += this.speed[i];
+    }
+    for(int i = this.size0; i < this.size0 + this.size1; i++) {
+      speed1 += this.speed[i];
+    }
+    if(speed0 != speed1) {
+      return speed0 > speed1 ? 0 : 1;
+    }
+    return random.nextDouble() < 0.5 ? 0 : 1;
+  }
+
+  /**
+   * Has each living hero of a party make a random move, in the party's
+   * speed order, as the party's turn in a BattleEngine with a
+   * RandomActionSource does.
+   * @param side, the party to move (0 or 1)
+   * @param choices, the generator for the party's choice of moves
+   * @param random, the generator for dodges
+   */
+  public void playRandomTurn(int side, RandomGenerator choices, RandomGenerator random) {
+    int other = 1 - side;
+    for(int rank = 0; rank < this.getSize(side); rank++) {
+      int actor = this.getIndex(side, this.order[this.getIndex(side, rank)]);
+      if(!(getBit(this.alive, actor))) {
+        continue;
+      }
+
+      int command = Party.randomCommandIndex(choices);
+      if(command == ATTACK) {
+        this.attack(actor, this.getIndex(other, this.randomAliveSlot(other, choices)),
+                    false, random);
+      }
+      else if(command == MAGIC) {
+        this.magic(actor, this.getIndex(other, this.randomAliveSlot(other, choices)), random);
+      }
+      else if(command == CLUSTER) {
+        this.cluster(actor, random);
+      }
+      else {
+        this.defend(actor);
+      }
+
+      if(this.isDefeated(other)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Randomly choses a living hero of a party, as Party.randomAliveIndex
+   * does, and returns its index in the party. Every living hero is
+   * equally likely to be chosen.
+   * @param side, the party to chose from (0 or 1), with a living hero
+   * @param random, the generator to use
+   */
+  public int randomAliveSlot(int side, RandomGenerator random) {
+    int count = this.getAliveCount(side);
+    if(count == 0) {
+      throw new RuntimeException("The party has no living hero.");
+    }
+    int from = this.getIndex(side, 0);
+    return nthBit(this.alive, from, random.nextInt(count)) - from;
+  }
+
+  /*************************************************************************
+   *  Bitsets
+   *************************************************************************/
+
+  // Retrieves bit i of a bitset
+  private static boolean getBit(long[] bits, int i) {
+    return (bits[i >>> 6] & (1L << i)) != 0;
+  }
+
+  // Sets bit i of a bitset to the given value
+  private static void setBit(long[] bits, int i, boolean value) {
+    if(value) {
+      bits[i >>> 6] |= 1L << i;
+    }
+    else {
+      bits[i >>> 6] &= ~(1L << i);
+    }
+  }
+
+  // Returns the index of the nth bit set at or after index from, skipping
+  // whole words by their bit counts
+  private static int nthBit(long[] bits, int from, int n) {
+    int w = from >>> 6;
+    long word = bits[w] & (-1L << from);
+    int count = Long.bitCount(word);
+    while(n >= count) {
+      n -= count;
+      w++;
+      word = bits[w];
+      count = Long.bitCount(word);
+    }
+    return (w << 6) + Party.nthSetBit(word, n);
+  }
+
+  // Counts the bits set from index from (inclusive) to to (exclusive)
+  private static int countBits(long[] bits, int from, int to) {
+    if(from >= to) {
+      return 0;
+    }
+    int first = from >>> 6;
+    int last = (to - 1) >>> 6;
+    long firstMask = -1L << from;
+    long lastMask = -1L >>> -to;
+    if(first == last) {
+      return Long.bitCount(bits[first] & firstMask & lastMask);
+    }
+    int count = Long.bitCount(bits[first] & firstMask);
+    for(int w = first + 1; w < last; w++) {
+      count += Long.bitCount(bits[w]);
+    }
+    return count + Long.bitCount(bits[last] & lastMask);
+  }
+}
@@ -0,0 +1,262 @@
+/*************************************************************************
+ *  Compilation:  javac CombatBenchmark.java
+ *  Execution:    java -Djava.awt.headless=true CombatBenchmark [regex] [iterations] [ms]
+ *
+ *  Micro-benchmarks of the combat hot paths, to be run before and after any
+ *  change to the engine. Every benchmark is warmed up and then measured for
+ *  a number of timed iterations, in the manner of JMH's throughput mode, and
+ *  reports its throughput in operations per second with a 99.9% confidence
+ *  error, plus the bytes allocated per operation (the figure JMH's GC
+ *  profiler reports as gc.alloc.rate.norm), read from the thread's
+ *  allocation counter.
+ *
+ *  Only the benchmarks whose names match the optional regex are run, e.g.
+ *  java CombatBenchmark "Hero.*" runs only the Hero benchmarks.
+ *
+ *  Heroes that are attacked in a loop are given so much health that they
+ *  never die during a measurement, so no benchmark pays for resetting them.
+ *  Battle.determineFirstParty needs a screen, so the BattleEngine method it
+ *  delegates to is measured instead.
+ *
+ *  BattleSnapshot.update captures a battle in which one hero changed
+ *  since the last snapshot, and BattleSnapshot.restore undoes a change;
+ *  Party.copy is the deep copy they save.
+ *  InitiativeQueue.next picks the next of 800 heroes to act.
+ *  BattleEngine.playTurn.N plays one turn between two parties of N such
+ *  heroes, showing how the cost of a turn grows with the party size. Every
+ *  cluster hits the whole opposing party, so a turn does O(N^2) work by the
+ *  rules of the game; the engine's own bookkeeping is O(N log N) or less.
+ *
+ *  Version 1.0
+ *************************************************************************/
+import java.lang.management.ManagementFactory;
+import java.util.SplittableRandom;
+
+public class CombatBenchmark {
+  // Consumes benchmark results, so the JIT cannot remove the work producing them
+  private static volatile long sink;
+
+  private final String filter;
+  private final int iterations;
+  private final long iterationNanos;
+  private final com.sun.management.ThreadMXBean threads;
+
+  /**
+   * A benchmarked operation. The returned value is consumed so
+   * that the operation cannot be optimised away.
+   */
+  private interface Operation {
+    long run();
+  }
+
+  /**
+   * Constructor
+   * @param filter, a regex matching the names of the benchmarks to run
+   * @param iterations, the number of measured iterations per benchmark
+   * @param iterationMillis, the length of each iteration in milliseconds
+   */
+  public CombatBenchmark(String filter, int iterations, long iterationMillis) {
+    if(iterations < 2 || iterationMillis <= 0) {
+      throw new IllegalArgumentException("Need at least 2 iterations of positive length.");
+    }
+    this.filter = filter;
+    this.iterations = iterations;
+    this.iterationNanos = iterationMillis * 1000000L;
+    this.threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    this.threads.setThreadAllocatedMemoryEnabled(true);
+  }
+
+  /**
+   * Runs a benchmark, if its name matches the filter, and prints its results.
+   * @param name, the name of the benchmark
+   * @param operation, the operation to be measured
+   */
+  private void measure(String name, Operation operation) {
+    if(!(name.matches(this.filter))) {
+      return;
+    }
+
+    // Warm up for as long as two measured iterations
+    this.iterate(operation);
+    this.iterate(operation);
+
+    double[] scores = new double[this.iterations];
+    long operations = 0;
+    long threadId = Thread.currentThread().getId();
+    long allocatedBefore = this.threads.getThreadAllocatedBytes(threadId);
+    for(int i = 0; i < this.iterations; i++) {
+      long start = System.nanoTime();
+      long count = this.iterate(operation);
+      scores[i] = count * 1e9 / (System.nanoTime() - start);
+      operations += count;
+    }
+    long allocated = this.threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+    double mean = 0;
+    for(int i = 0; i < scores.length; i++) {
+      mean += scores[i];
+    }
+    mean /= scores.length;
+    double variance = 0;
+    for(int i = 0; i < scores.length; i++) {
+      variance += (scores[i] - mean) * (scores[i] - mean);
+    }
+    variance /= scores.length - 1;
+    // 3.29 standard errors, a 99.9% interval under a normal approximation
+    double error = 3.29 * Math.sqrt(variance / scores.length);
+
+    System.out.printf("%-36s thrpt %3d %16.1f +- %14.1f  ops/s %10.1f  B/op%n", name,
+                      this.iterations, mean, error, (double) allocated / operations);
+  }
+
+  // Runs an operation repeatedly for one iteration and returns the number of runs
+  private long iterate(Operation operation) {
+    long deadline = System.nanoTime() + this.iterationNanos;
+    long count = 0;
+    long result = 0;
+    do {
+      for(int i = 0; i < 1024; i++) {
+        result += operation.run();
+      }
+      count += 1024;
+    } while(System.nanoTime() < deadline);
+    sink = result;
+    return count;
+  }
+
+  /**
+   * Runs every benchmark matching the filter.
+   */
+  public void run() {
+    System.out.printf("%-36s %5s %3s %16s   %14s  %5s %10s%n", "Benchmark", "Mode", "Cnt",
+                      "Score", "Error", "Units", "Alloc");
+
+    final SplittableRandom random = new SplittableRandom(42);
+    final ActionResult result = new ActionResult();
+    final Hero attacker = new Hero(100, 80, 80, 30, 80, 70, 80, "skeleton.png", "Skeleton King");
+    final Hero dummy = dummy("Dummy", 50);
+    final Party dummies = new Party(dummies());
+    final Party skeletons = new Party(new Hero[] {
+      new Hero(100, 80, 80, 30, 80, 70, 80, "skeleton.png", "Skeleton King"),
+      new Hero(85, 85, 60, 30, 60, 60, 25, "zombie.png", "Zombie"),
+      new Hero(90, 70, 60, 65, 85, 75, 60, "fireelemental.png", "Fire Elemental"),
+      new Hero(85, 65, 50, 70, 75, 65, 30, "ghost.png", "Ghost")});
+    final Party heroes = new Party(new Hero[] {
+      new Hero(95, 45, 85, 25, 10, 30, 25, "knight.png", "Knight"),
+      new Hero(55, 50, 60, 45, 25, 60, 80, "thief.png", "Thief"),
+      new Hero(65, 10, 45, 65, 90, 70, 55, "mage.png", "Mage"),
+      new Hero(55, 70, 30, 60, 15, 30, 95, "assassin.png", "Assassin")});
+    final Party attackers = skeletons.copy();
+    final Hero[] unsorted = skeletons.copy().getHeroes();
+    final BattleState initial = new BattleState(heroes, skeletons);
+    final BattleState state = initial.copy();
+
+    this.measure("Hero.attack", () -> {
+      attacker.attack(dummy, false, random, result);
+      return result.getDamage();
+    });
+    this.measure("Hero.attack.cluster", () -> {
+      attacker.attack(dummy, true, random, result);
+      return result.getDamage();
+    });
+    this.measure("Hero.attack.message", () -> {
+      return attacker.attack(dummy, false, random).length();
+    });
+    this.measure("Hero.magic", () -> {
+      attacker.magic(dummy, random, result);
+      return result.getDamage();
+    });
+    this.measure("Hero.cluster", () -> {
+      attacker.cluster(dummies, random, result);
+      return result.getDamage();
+    });
+    this.measure("Party.randomAttack", () -> {
+      attackers.randomAttack(dummies, random);
+      return dummies.getHeroes()[0].getCurrentHealth();
+    });
+    this.measure("Party.sortAscendingSpeed", () -> {
+      return Party.sortAscendingSpeed(unsorted).length;
+    });
+    this.measure("Party.isDefeated", () -> {
+      return dummies.isDefeated() ? 1 : 0;
+    });
+    this.measure("BattleEngine.determineFirstParty", () -> {
+      return BattleEngine.determineFirstParty(heroes, skeletons, random) == heroes ? 1 : 0;
+    });
+    this.measure("BattleEngine.run", () -> {
+      Party party0 = heroes.copy();
+      Party party1 = skeletons.copy();
+      BattleEngine engine = new BattleEngine(party0, new RandomActionSource(random),
+                                             party1, new RandomActionSource(random), random);
+      engine.run();
+      return engine.getTurns();
+    });
+    this.measure("BattleState.simulate", () -> {
+      state.copyFrom(initial);
+      return state.simulate(random, random, random) + state.getTurns();
+    });
+    final Party branch = heroes.copy();
+    final BattleSnapshot[] snapshot = {BattleSnapshot.capture(branch, skeletons)};
+    this.measure("Party.copy", () -> {
+      return heroes.copy().getHeroes().length;
+    });
+    this.measure("BattleSnapshot.update", () -> {
+      // One hero changes per move, so one chunk is captured anew
+      Hero hero = branch.getHeroes()[0];
+      hero.setCurrentHealth(hero.getCurrentHealth() == 1 ? hero.getMaxHealth() : 1);
+      snapshot[0] = snapshot[0].update();
+      return snapshot[0].getCurrentHealth(0, 0);
+    });
+    this.measure("BattleSnapshot.restore", () -> {
+      Hero hero = branch.getHeroes()[0];
+      hero.setCurrentHealth(hero.getCurrentHealth() + 1);
+      snapshot[0].restore();
+      return hero.getCurrentHealth();
+    });
+    final InitiativeQueue initiative = new InitiativeQueue(new Party(dummies(400)),
+                                                           new Party(dummies(400)));
+    this.measure("InitiativeQueue.next", () -> {
+      return initiative.next();
+    });
+    for(int size = 4; size <= 400; size *= 10) {
+      final Party raiders = new Party(dummies(size));
+      final BattleEngine[] raid = new BattleEngine[1];
+      this.measure("BattleEngine.playTurn." + size, () -> {
+        // Defending without being hit doubles defense until it overflows and
+        // even a dummy can be killed, so the rare finished raid is restarted
+        if(raid[0] == null || raid[0].isOver()) {
+          raid[0] = new BattleEngine(raiders.copy(), new RandomActionSource(random),
+                                     raiders.copy(), new RandomActionSource(random), random);
+        }
+        raid[0].playTurn();
+        return raid[0].getTurns();
+      });
+    }
+  }
+
+  // A hero with so much health that it never dies while being benchmarked
+  private static Hero dummy(String name, int speed) {
+    return new Hero(Integer.MAX_VALUE, 50, 50, 40, 50, 50, speed, "ghost.png", name);
+  }
+
+  // Four dummies with different speeds
+  private static Hero[] dummies() {
+    return dummies(4);
+  }
+
+  // The given number of dummies with different speeds
+  private static Hero[] dummies(int size) {
+    Hero[] dummies = new Hero[size];
+    for(int i = 0; i < dummies.length; i++) {
+      dummies[i] = dummy("Dummy " + i, 40 - 10 * (i % 4));
+    }
+    return dummies;
+  }
+
+  public static void main(String[] args) {
+    String filter = args.length > 0 ? args[0] : ".*";
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    long millis = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+    new CombatBenchmark(filter, iterations, millis).run();
+  }
+}
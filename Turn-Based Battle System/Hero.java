@@ -18,22 +18,34 @@
  *       stats more meaningful in terms of damage calculation.
  *    -  Balance defend, in order to make it useful at least situationally
  * 
+ *  A hero's name, images and base stats are kept in a HeroTemplate, shared
+ *  by every hero of its class, so a hero itself holds only what a battle
+ *  changes.
+ *
+ *  The moves that can miss take the random number generator to roll dodges
+ *  with, so that a battle can be replayed exactly from a seed. The overloads
+ *  without one use the calling thread's ThreadLocalRandom.
+ *
  *  Version 1.0
  *************************************************************************/
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
+
 public class Hero {
+  // Name, images and the stats a battle never changes, shared by every
+  // hero of the same class
+  private final HeroTemplate template;
   private int currentHealth; 
-  private int maxHealth;
   private int attack;
   private int defense;
-  private int evasion;
   private int speed;
-  private int magic;
   private int magicResist;
   private boolean alive;
+  // The party holding this hero and its index there, told when its alive
+  // state or speed changes
+  private Party party;
+  private int slot;
   private boolean defending;
-  private String aliveImg;
-  private String deadImg;
-  private String name;
   
   // Retrieves given hero's current health
   public int getCurrentHealth() {
@@ -47,7 +59,7 @@ public class Hero {
   
   // Retrieves given hero's maximum health
   public int getMaxHealth() {
-    return this.maxHealth;
+    return this.template.getMaxHealth();
   }
   
   // Retrieves given hero's attack points
@@ -72,7 +84,7 @@ public class Hero {
   
   // Retrieves given hero's evasion points
   public int getEvasion() {
-    return this.evasion;
+    return this.template.getEvasion();
   }
   
   // Retrieves given hero's speed points
@@ -83,11 +95,14 @@ public class Hero {
   // Sets given hero's speed points
   public void setSpeed(int speed) {
     this.speed = speed;
+    if(this.party != null && this.party.holds(this)) {
+      this.party.speedChanged(this.slot);
+    }
   }
   
   // Retrieves given hero's magic points
   public int getMagic() {
-    return this.magic;
+    return this.template.getMagic();
   }
   
   // Retrieves given hero's magic resistance points
@@ -108,6 +123,26 @@ public class Hero {
   // Sets whether or not given hero is alive
   public void setAlive(boolean alive) {
     this.alive = alive;
+    if(this.party != null && this.party.holds(this)) {
+      this.party.setAlive(this.slot, alive);
+    }
+  }
+  
+  // Records the party and index holding this hero, or null and -1 for
+  // none; a hero belongs to the party it was put in last
+  void setParty(Party party, int slot) {
+    this.party = party;
+    this.slot = slot;
+  }
+  
+  // Retrieves the party this hero belongs to, or null
+  Party getParty() {
+    return this.party;
+  }
+  
+  // Retrieves this hero's index in its party
+  int getSlot() {
+    return this.slot;
   }
   
   // Retrieves whether or not given hero is defending
@@ -122,17 +157,17 @@ public class Hero {
   
   // Retrieves the image displayed when the battle starts
   public String getAliveImg() {
-    return this.aliveImg;
+    return this.template.getAliveImg();
   }
   
   // Retrieves the image displayed when the hero dies
   public String getDeadImg() {
-    return this.deadImg;
+    return this.template.getDeadImg();
   }
   
   // Retrieves hero's name
   public String getName() {
-    return this.name;
+    return this.template.getName();
   }
   
   /**
@@ -149,27 +184,8 @@ public class Hero {
    */
   public Hero(int maxHealth, int attack, int defense, int evasion, int magic, 
               int magicResist, int speed, String aliveImg, String name) {
-    
-    if(maxHealth <= 0 || attack <= 0 || defense <= 0 || evasion <= 0 ||
-       speed <= 0 || magic <= 0 || magicResist <= 0) {
-      throw new RuntimeException("Character must have at least 1 of each stat.");
-    }
-    
-    this.currentHealth = maxHealth;
-    this.maxHealth = maxHealth;
-    this.attack = attack;
-    this.defense = defense;
-    this.evasion = evasion;
-    this.speed = speed;
-    this.magic = magic;
-    this.magicResist = magicResist;
-    
-    this.aliveImg = aliveImg;
-    this.deadImg = "skullandbones.png";
-    this.name = name;
-    
-    this.alive = true;
-    this.defending = false;
+    this(new HeroTemplate(maxHealth, attack, defense, evasion, magic, magicResist, speed,
+                          aliveImg, "skullandbones.png", name));
   }
   
   /**
@@ -189,29 +205,48 @@ public class Hero {
   public Hero(int maxHealth, int attack, int defense, int evasion, int magic, 
               int magicResist, int speed, String aliveImg, String deadImg, 
               String name) {
-    
-    if(maxHealth <= 0 || attack <= 0 || defense <= 0 || evasion <= 0 ||
-       speed <= 0 || magic <= 0 || magicResist <= 0) {
-      throw new RuntimeException("Character must have at least 1 of each stat.");
-    }
-    
-    this.currentHealth = maxHealth;
-    this.maxHealth = maxHealth;
-    this.attack = attack;
-    this.defense = defense;
-    this.evasion = evasion;
-    this.speed = speed;
-    this.magic = magic;
-    this.magicResist = magicResist;
-    
-    this.aliveImg = aliveImg;
-    this.deadImg = deadImg;
-    this.name = name;
+    this(new HeroTemplate(maxHealth, attack, defense, evasion, magic, magicResist, speed,
+                          aliveImg, deadImg, name));
+  }
+  
+  /**
+   * Constructor 3 - A hero of the class described by a template, at full
+   * health, sharing the template's name, images and stats.
+   * @params template, the hero's class
+   */
+  public Hero(HeroTemplate template) {
+    this.template = template;
+    this.currentHealth = template.getMaxHealth();
+    this.attack = template.getAttack();
+    this.defense = template.getDefense();
+    this.speed = template.getSpeed();
+    this.magicResist = template.getMagicResist();
     
     this.alive = true;
     this.defending = false;
   }
   
+  // Retrieves the template this hero shares with the rest of its class
+  public HeroTemplate getTemplate() {
+    return this.template;
+  }
+  
+  /**
+   * Returns a new hero with the same stats, images, name and
+   * current battle state as this hero, sharing its template.
+   */
+  public Hero copy() {
+    Hero copy = new Hero(this.template);
+    copy.currentHealth = this.currentHealth;
+    copy.attack = this.attack;
+    copy.defense = this.defense;
+    copy.speed = this.speed;
+    copy.magicResist = this.magicResist;
+    copy.alive = this.alive;
+    copy.defending = this.defending;
+    return copy;
+  }
+  
   /**
    * Attacks an opposing hero with a normal attack.
    * @param enemy, the opposing hero to be attacked
@@ -220,66 +255,37 @@ public class Hero {
    * cluster is being used
    */
   public String attack(Hero enemy, boolean cluster) {
-    String msg;
-    double dodgeChance = enemy.getEvasion() * 0.25;
-    if(Math.random() * 100 <= dodgeChance) {
-      msg = enemy.getName() + " dodged the attack!";
-      return msg;
-    }
-    
-    int damageDealt;
-    if(!(cluster)) {
-    if(this.getAttack() >= enemy.getDefense()) {
-      damageDealt = 20 + ((this.getAttack() - enemy.getDefense()) / 3);
-    }
-    else {
-      damageDealt = 20 + ((enemy.getDefense() - this.getAttack()) / 3);
-    }
-    
-    if(damageDealt >= enemy.getCurrentHealth()) {
-      enemy.die(); 
-      msg = enemy.getName() + " took " + damageDealt + " damage and died!";
-      return msg;
-    }
-    else {
-      enemy.setCurrentHealth(enemy.getCurrentHealth() - damageDealt);
-      if(enemy.getDefending()) {
-        enemy.setDefense(enemy.getDefense() / 2);
-        enemy.setMagicResist(enemy.getMagicResist() / 2);
-        enemy.setDefending(false);
-        msg = enemy.getName() + " was defending and took " + damageDealt + " damage!";
-        return msg;
-      }
-      msg = enemy.getName() + " took " + damageDealt + " damage!";
-      return msg;
-    }
-    }
-    else {
-      if(this.getAttack() >= enemy.getDefense()) {
-        damageDealt = 3 + ((this.getAttack() - enemy.getDefense()) / 3);
-      }
-      else {
-        damageDealt = 3 + ((enemy.getDefense() - this.getAttack()) / 3);
-      }
-      
-      if(damageDealt >= enemy.getCurrentHealth()) {
-        enemy.die(); 
-        msg = enemy.getName() + " took " + damageDealt + " damage and died!";
-        return msg;
-      }
-      else {
-        enemy.setCurrentHealth(enemy.getCurrentHealth() - damageDealt);
-        if(enemy.getDefending()) {
-          enemy.setDefense(enemy.getDefense() / 2);
-          enemy.setMagicResist(enemy.getMagicResist() / 2);
-          enemy.setDefending(false);
-          msg = enemy.getName() + " was defending and took " + damageDealt + " damage!";
-          return msg;
-        }
-        msg = enemy.getName() + " took " + damageDealt + " damage!";
-        return msg;
-      }
+    return this.attack(enemy, cluster, ThreadLocalRandom.current());
+  }
+  
+  /**
+   * Attacks an opposing hero with a normal attack, rolling the enemy's
+   * dodge with the given random number generator.
+   * @param enemy, the opposing hero to be attacked
+   * @param cluster, true if the attack is part of a cluster attack
+   * @param random, the random number generator to roll the dodge with
+   */
+  public String attack(Hero enemy, boolean cluster, RandomGenerator random) {
+    ActionResult result = new ActionResult();
+    this.attack(enemy, cluster, random, result);
+    return result.getMessage();
+  }
+  
+  /**
+   * Attacks an opposing hero with a normal attack and writes the outcome
+   * into the given result instead of building a message. The result is
+   * that of a single target attack, with reduced damage if cluster is true.
+   * @param enemy, the opposing hero to be attacked
+   * @param cluster, true if the attack is part of a cluster attack
+   * @param random, the random number generator to roll the dodge with
+   * @param result, the result to be written, or null if it is not needed
+   */
+  public void attack(Hero enemy, boolean cluster, RandomGenerator random,
+                     ActionResult result) {
+    if(result != null) {
+      result.begin(ActionResult.ATTACK, this, enemy);
     }
+    this.strike(enemy, cluster, random, result);
   }
   
   /**
@@ -288,11 +294,38 @@ public class Hero {
    * @param enemy, the opposing hero to be attacked with magic
    */
   public String magic(Hero enemy) {
-    String msg;
+    return this.magic(enemy, ThreadLocalRandom.current());
+  }
+  
+  /**
+   * Attacks an opposing hero with a magic attack, rolling the enemy's
+   * dodge with the given random number generator.
+   * @param enemy, the opposing hero to be attacked with magic
+   * @param random, the random number generator to roll the dodge with
+   */
+  public String magic(Hero enemy, RandomGenerator random) {
+    ActionResult result = new ActionResult();
+    this.magic(enemy, random, result);
+    return result.getMessage();
+  }
+  
+  /**
+   * Attacks an opposing hero with a magic attack and writes the outcome
+   * into the given result instead of building a message.
+   * @param enemy, the opposing hero to be attacked with magic
+   * @param random, the random number generator to roll the dodge with
+   * @param result, the result to be written, or null if it is not needed
+   */
+  public void magic(Hero enemy, RandomGenerator random, ActionResult result) {
+    if(result != null) {
+      result.begin(ActionResult.MAGIC, this, enemy);
+    }
     double dodgeChance = enemy.getEvasion() * 0.25;
-    if(Math.random() * 100 <= dodgeChance) {
-      msg = enemy.getName() + " dodged the attack!";
-      return msg;
+    if(random.nextDouble() * 100 <= dodgeChance) {
+      if(result != null) {
+        result.recordDodge();
+      }
+      return;
     }
     
     int magicDealt;
@@ -302,24 +335,7 @@ public class Hero {
     else {
       magicDealt = 25 + ((enemy.getMagicResist() - this.getMagic()) / 3);
     }
-    
-    if(magicDealt >= enemy.getCurrentHealth()) {
-      enemy.die(); 
-      msg = enemy.getName() + " took " + magicDealt + " magic damage and died!";
-      return msg;
-    }
-    else {
-      enemy.setCurrentHealth(enemy.getCurrentHealth() - magicDealt);
-      if(enemy.getDefending()) {
-        enemy.setDefense(enemy.getDefense() / 2);
-        enemy.setMagicResist(enemy.getMagicResist() / 2);
-        enemy.setDefending(false);
-        msg = enemy.getName() + " was defending and took " + magicDealt + " magic damage!";
-        return msg;
-      }
-      msg = enemy.getName() + " took " + magicDealt + " magic damage!";
-      return msg;
-    }
+    enemy.takeDamage(magicDealt, result);
   }
   
   /**
@@ -327,11 +343,22 @@ public class Hero {
    * is attacked.
    */
   public String defend() {
+    ActionResult result = new ActionResult();
+    this.defend(result);
+    return result.getMessage();
+  }
+  
+  /**
+   * Same as defend(), but writes the outcome into the given result.
+   * @param result, the result to be written, or null if it is not needed
+   */
+  public void defend(ActionResult result) {
+    if(result != null) {
+      result.begin(ActionResult.DEFEND, this, null);
+    }
     this.setDefense(2 * this.getDefense());
     this.setMagicResist(2 * this.getMagicResist());
     this.setDefending(true);
-    String msg = this.getName() + " braced itself for incoming damage!";
-    return msg;
   }
   
   /**
@@ -340,11 +367,94 @@ public class Hero {
    * @param enemy, the opposing party to be group attacked
    */
   public String cluster(Party enemy) {
+    return this.cluster(enemy, ThreadLocalRandom.current());
+  }
+  
+  /**
+   * Attacks all of an opposing party's members at once, rolling each
+   * enemy's dodge with the given random number generator.
+   * @param enemy, the opposing party to be group attacked
+   * @param random, the random number generator to roll the dodges with
+   */
+  public String cluster(Party enemy, RandomGenerator random) {
+    ActionResult result = new ActionResult();
+    this.cluster(enemy, random, result);
+    return result.getMessage();
+  }
+  
+  /**
+   * Attacks all of an opposing party's members at once and writes the
+   * total damage dealt, and whether any of them died, into the given result.
+   * @param enemy, the opposing party to be group attacked
+   * @param random, the random number generator to roll the dodges with
+   * @param result, the result to be written, or null if it is not needed
+   */
+  public void cluster(Party enemy, RandomGenerator random, ActionResult result) {
+    if(result != null) {
+      result.begin(ActionResult.CLUSTER, this, null);
+    }
     for(int i = 0; i < enemy.getHeroes().length; i++) {
-      this.attack(enemy.getHeroes()[i], true);
+      Hero hero = enemy.getHeroes()[i];
+      // Dead heroes are still struck, but add nothing to the result
+      this.strike(hero, true, random, hero.getAlive() ? result : null);
+    }
+  }
+  
+  /**
+   * Rolls an enemy's dodge and, if it fails to dodge, deals it normal
+   * attack damage. Cluster attacks deal less damage.
+   * @param enemy, the opposing hero to be attacked
+   * @param cluster, true if the attack is part of a cluster attack
+   * @param random, the random number generator to roll the dodge with
+   * @param result, the result to record the outcome in, or null; the dodge
+   *        is not recorded in the result of a whole cluster attack
+   */
+  private void strike(Hero enemy, boolean cluster, RandomGenerator random,
+                      ActionResult result) {
+    double dodgeChance = enemy.getEvasion() * 0.25;
+    if(random.nextDouble() * 100 <= dodgeChance) {
+      if(result != null && result.getKind() != ActionResult.CLUSTER) {
+        result.recordDodge();
+      }
+      return;
+    }
+    
+    int base = cluster ? 3 : 20;
+    int damageDealt;
+    if(this.getAttack() >= enemy.getDefense()) {
+      damageDealt = base + ((this.getAttack() - enemy.getDefense()) / 3);
+    }
+    else {
+      damageDealt = base + ((enemy.getDefense() - this.getAttack()) / 3);
+    }
+    enemy.takeDamage(damageDealt, result);
+  }
+  
+  /**
+   * Takes damage, dying if it is at least this hero's current health.
+   * A defending hero that survives stops defending.
+   * @param damage, the damage dealt to this hero
+   * @param result, the result to record the hit in, or null
+   */
+  private void takeDamage(int damage, ActionResult result) {
+    boolean wasDefending = this.getDefending();
+    if(damage >= this.getCurrentHealth()) {
+      this.die();
+      if(result != null) {
+        result.recordHit(damage, false, true);
+      }
+      return;
+    }
+    
+    this.setCurrentHealth(this.getCurrentHealth() - damage);
+    if(wasDefending) {
+      this.setDefense(this.getDefense() / 2);
+      this.setMagicResist(this.getMagicResist() / 2);
+      this.setDefending(false);
+    }
+    if(result != null) {
+      result.recordHit(damage, wasDefending, false);
     }
-    String msg = this.getName() + " attacked the entire party in one fell swoop!";
-    return msg;
   }
   
   /**
@@ -0,0 +1,114 @@
+/*************************************************************************
+ *  Compilation:  javac HeroTemplate.java
+ *
+ *  The immutable part of a hero: its name, images and base stats. Every
+ *  Hero points to a template and holds only what a battle changes, i.e.
+ *  its current health, attack, defense, speed and magic resistance and
+ *  whether it is alive and defending. One template is shared by all the
+ *  heroes of a class - every copy made with Hero.copy(), every party built
+ *  from a roster and every hero of every simulated battle - so a hero costs
+ *  a few ints rather than its own strings and stats.
+ *
+ *  Version 1.0
+ *************************************************************************/
+public class HeroTemplate {
+  private final int maxHealth;
+  private final int attack;
+  private final int defense;
+  private final int evasion;
+  private final int magic;
+  private final int magicResist;
+  private final int speed;
+  private final String aliveImg;
+  private final String deadImg;
+  private final String name;
+
+  /**
+   * Constructor - Same parameters as Hero's constructor 2.
+   * @params maxHealth, hero's maximum hit points
+   * @params attack, hero's base attack points
+   * @params defense, hero's base defense points
+   * @params evasion, hero's evasion points
+   * @params magic, hero's magic points
+   * @params magicResist, hero's base magic resist points
+   * @params speed, hero's base speed points
+   * @params aliveImg, the image to be displayed upon starting the battle
+   * @params deadImg, image to be displayed upon hero's death
+   * @params name, hero's name
+   */
+  public HeroTemplate(int maxHealth, int attack, int defense, int evasion, int magic,
+                      int magicResist, int speed, String aliveImg, String deadImg,
+                      String name) {
+    if(maxHealth <= 0 || attack <= 0 || defense <= 0 || evasion <= 0 ||
+       speed <= 0 || magic <= 0 || magicResist <= 0) {
+      throw new RuntimeException("Character must have at least 1 of each stat.");
+    }
+    this.maxHealth = maxHealth;
+    this.attack = attack;
+    this.defense = defense;
+    this.evasion = evasion;
+    this.magic = magic;
+    this.magicResist = magicResist;
+    this.speed = speed;
+    this.aliveImg = aliveImg;
+    this.deadImg = deadImg;
+    this.name = name;
+  }
+
+  /**
+   * Returns a new hero of this class, at full health.
+   */
+  public Hero newHero() {
+    return new Hero(this);
+  }
+
+  // Retrieves the maximum health
+  public int getMaxHealth() {
+    return this.maxHealth;
+  }
+
+  // Retrieves the attack points a hero starts with
+  public int getAttack() {
+    return this.attack;
+  }
+
+  // Retrieves the defense points a hero starts with
+  public int getDefense() {
+    return this.defense;
+  }
+
+  // Retrieves the evasion points
+  public int getEvasion() {
+    return this.evasion;
+  }
+
+  // Retrieves the magic points
+  public int getMagic() {
+    return this.magic;
+  }
+
+  // Retrieves the magic resistance points a hero starts with
+  public int getMagicResist() {
+    return this.magicResist;
+  }
+
+  // Retrieves the speed points a hero starts with
+  public int getSpeed() {
+    return this.speed;
+  }
+
+  // Retrieves the image displayed when the battle starts
+  public String getAliveImg() {
+    return this.aliveImg;
+  }
+
+  // Retrieves the image displayed when the hero dies
+  public String getDeadImg() {
+    return this.deadImg;
+  }
+
+  // Retrieves the name
+  public String getName() {
+    return this.name;
+  }
+}
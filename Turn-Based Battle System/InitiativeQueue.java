@@ -0,0 +1,231 @@
+/*************************************************************************
+ *  Compilation:  javac InitiativeQueue.java
+ *
+ *  Per-hero turn order across two parties. Every living hero of both
+ *  parties acts once per round, and within a round the fastest hero acts
+ *  first, whichever party it belongs to; heroes of equal speed act in
+ *  party order, the first party's before the second's. After acting, a
+ *  hero is scheduled for the following round.
+ *
+ *  The heroes are kept in an indexed binary min-heap keyed by (round,
+ *  speed, position), so choosing the next hero and rescheduling it cost
+ *  O(log n) for n heroes. The queue registers itself with both parties:
+ *  when a hero's speed changes it is moved within the heap, when a hero
+ *  dies it is removed and when it is revived it is put back for the next
+ *  round, each in O(log n), so the order is never rebuilt from scratch.
+ *
+ *  Version 1.0
+ *************************************************************************/
+public class InitiativeQueue {
+  private final Party party0;
+  private final Party party1;
+  private final int size0;
+  // heap[k] is the id of a hero; hero id i is party0's hero i or party1's
+  // hero i - size0, and position[i] is its place in the heap, or -1
+  private final int[] heap;
+  private final int[] position;
+  private final int[] round;
+  private int size;
+  private int currentRound;
+
+  /**
+   * Constructor - Schedules every living hero of both parties for round 0
+   * and starts following changes to their speed and health.
+   * @param party0, the party whose heroes win ties in speed
+   * @param party1, the other party
+   */
+  public InitiativeQueue(Party party0, Party party1) {
+    this.party0 = party0;
+    this.party1 = party1;
+    this.size0 = party0.getHeroes().length;
+    int n = this.size0 + party1.getHeroes().length;
+    this.heap = new int[n];
+    this.position = new int[n];
+    this.round = new int[n];
+    this.size = 0;
+    this.currentRound = 0;
+    for(int id = 0; id < n; id++) {
+      this.position[id] = -1;
+      if(this.getHero(id).getAlive()) {
+        this.heap[this.size] = id;
+        this.position[id] = this.size;
+        this.size++;
+      }
+    }
+    // Bottom-up heap construction, O(n)
+    for(int k = this.size / 2 - 1; k >= 0; k--) {
+      this.siftDown(k);
+    }
+    party0.setInitiative(this);
+    party1.setInitiative(this);
+  }
+
+  /**
+   * Stops following the parties' heroes. The queue must not be used
+   * afterwards.
+   */
+  public void detach() {
+    this.party0.setInitiative(null);
+    this.party1.setInitiative(null);
+  }
+
+  /**
+   * Returns true if no hero is left to act.
+   */
+  public boolean isEmpty() {
+    return this.size == 0;
+  }
+
+  /**
+   * Retrieves the round of the hero due to act next, or the current round
+   * if no hero is left.
+   */
+  public int peekRound() {
+    if(this.size == 0) {
+      return this.currentRound;
+    }
+    return this.round[this.heap[0]];
+  }
+
+  /**
+   * Returns the id of the hero due to act next, without rescheduling it.
+   * The party and index of that hero are given by getParty and getSlot.
+   */
+  public int peek() {
+    if(this.size == 0) {
+      throw new RuntimeException("No hero is left to act.");
+    }
+    return this.heap[0];
+  }
+
+  /**
+   * Returns the id of the hero due to act next and schedules it for the
+   * round after its current one.
+   */
+  public int next() {
+    int id = this.peek();
+    this.currentRound = this.round[id];
+    this.round[id]++;
+    this.siftDown(0);
+    return id;
+  }
+
+  // Retrieves the party whose heroes win ties in speed
+  public Party getFirstParty() {
+    return this.party0;
+  }
+
+  /**
+   * Retrieves the party of the hero with the given id.
+   * @param id, a hero id returned by next or peek
+   */
+  public Party getParty(int id) {
+    return id < this.size0 ? this.party0 : this.party1;
+  }
+
+  /**
+   * Retrieves the index within its party of the hero with the given id.
+   * @param id, a hero id returned by next or peek
+   */
+  public int getSlot(int id) {
+    return id < this.size0 ? id : id - this.size0;
+  }
+
+  // Retrieves the hero with the given id
+  private Hero getHero(int id) {
+    return this.getParty(id).getHeroes()[this.getSlot(id)];
+  }
+
+  // Retrieves the id of a party's hero
+  private int getId(Party party, int slot) {
+    return party == this.party0 ? slot : this.size0 + slot;
+  }
+
+  // Called by a party when one of its heroes' speed has changed
+  void speedChanged(Party party, int slot) {
+    int k = this.position[this.getId(party, slot)];
+    if(k >= 0) {
+      this.fix(k);
+    }
+  }
+
+  // Called by a party when one of its heroes dies or is revived
+  void aliveChanged(Party party, int slot, boolean alive) {
+    int id = this.getId(party, slot);
+    int k = this.position[id];
+    if(!alive && k >= 0) {
+      this.size--;
+      this.position[id] = -1;
+      if(k < this.size) {
+        this.heap[k] = this.heap[this.size];
+        this.position[this.heap[k]] = k;
+        this.fix(k);
+      }
+    }
+    if(alive && k < 0) {
+      // A revived hero waits for the round after the one being played
+      this.round[id] = this.currentRound + 1;
+      this.heap[this.size] = id;
+      this.position[id] = this.size;
+      this.size++;
+      this.siftUp(this.size - 1);
+    }
+  }
+
+  // Returns true if hero a is due to act before hero b
+  private boolean before(int a, int b) {
+    if(this.round[a] != this.round[b]) {
+      return this.round[a] < this.round[b];
+    }
+    int speedA = this.getHero(a).getSpeed();
+    int speedB = this.getHero(b).getSpeed();
+    if(speedA != speedB) {
+      return speedA > speedB;
+    }
+    return a < b;
+  }
+
+  // Restores the heap order after the key of the hero at heap index k changed
+  private void fix(int k) {
+    int id = this.heap[k];
+    this.siftUp(k);
+    if(this.position[id] == k) {
+      this.siftDown(k);
+    }
+  }
+
+  // Moves the hero at heap index k up until its parent is due before it
+  private void siftUp(int k) {
+    int id = this.heap[k];
+    while(k > 0) {
+      int parent = (k - 1) >>> 1;
+      if(!(this.before(id, this.heap[parent]))) {
+        break;
+      }
+      this.heap[k] = this.heap[parent];
+      this.position[this.heap[k]] = k;
+      k = parent;
+    }
+    this.heap[k] = id;
+    this.position[id] = k;
+  }
+
+  // Moves the hero at heap index k down until it is due before its children
+  private void siftDown(int k) {
+    int id = this.heap[k];
+    while(2 * k + 1 < this.size) {
+      int child = 2 * k + 1;
+      if(child + 1 < this.size && this.before(this.heap[child + 1], this.heap[child])) {
+        child++;
+      }
+      if(!(this.before(this.heap[child], id))) {
+        break;
+      }
+      this.heap[k] = this.heap[child];
+      this.position[this.heap[k]] = k;
+      k = child;
+    }
+    this.heap[k] = id;
+    this.position[id] = k;
+  }
+}
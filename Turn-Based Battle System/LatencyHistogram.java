@@ -0,0 +1,146 @@
+/*************************************************************************
+ *  Compilation:  javac LatencyHistogram.java
+ *
+ *  A histogram of durations in nanoseconds with one bucket per power of
+ *  two, from 1 ns up to about 9 minutes, for BattleMetrics. Recording a
+ *  duration adds to a LongAdder and costs a few nanoseconds, without a
+ *  lock, however many threads record at once. Percentiles are read as
+ *  the upper bound of the bucket they fall in, so they are at most twice
+ *  the true value.
+ *
+ *  Version 1.0
+ *************************************************************************/
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+  // Bucket i counts durations of at most 2^i ns, the last bucket all longer ones
+  private static final int BUCKETS = 40;
+  // The smallest bucket written out, 2^10 ns or about 1 microsecond
+  private static final int FIRST_WRITTEN = 10;
+
+  private final LongAdder[] counts;
+  private final LongAdder sum;
+  private final LongAccumulator max;
+
+  /**
+   * Constructor - An empty histogram.
+   */
+  public LatencyHistogram() {
+    this.counts = new LongAdder[BUCKETS];
+    for(int i = 0; i < BUCKETS; i++) {
+      this.counts[i] = new LongAdder();
+    }
+    this.sum = new LongAdder();
+    this.max = new LongAccumulator(Math::max, 0);
+  }
+
+  /**
+   * Records a duration.
+   * @param nanos, the duration in nanoseconds
+   */
+  public void record(long nanos) {
+    if(nanos < 0) {
+      nanos = 0;
+    }
+    int bucket = nanos <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(nanos - 1);
+    this.counts[Math.min(bucket, BUCKETS - 1)].increment();
+    this.sum.add(nanos);
+    this.max.accumulate(nanos);
+  }
+
+  // Retrieves the number of durations recorded
+  public long getCount() {
+    long count = 0;
+    for(int i = 0; i < BUCKETS; i++) {
+      count += this.counts[i].sum();
+    }
+    return count;
+  }
+
+  // Retrieves the total of the durations recorded, in nanoseconds
+  public long getSumNanos() {
+    return this.sum.sum();
+  }
+
+  // Retrieves the longest duration recorded, in nanoseconds
+  public long getMaxNanos() {
+    return this.max.get();
+  }
+
+  // Retrieves the mean duration, in nanoseconds, or 0 if none was recorded
+  public double getMeanNanos() {
+    long count = this.getCount();
+    return count == 0 ? 0 : (double) this.getSumNanos() / count;
+  }
+
+  /**
+   * Returns an upper bound, in nanoseconds, of the given percentile of the
+   * durations recorded, or 0 if none was recorded.
+   * @param percentile, the percentile, from 0 to 100
+   */
+  public long getPercentileNanos(double percentile) {
+    long[] counts = this.snapshot();
+    long count = 0;
+    for(int i = 0; i < BUCKETS; i++) {
+      count += counts[i];
+    }
+    if(count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+    long seen = 0;
+    for(int i = 0; i < BUCKETS - 1; i++) {
+      seen += counts[i];
+      if(seen >= rank) {
+        return Math.min(1L << i, this.getMaxNanos());
+      }
+    }
+    return this.getMaxNanos();
+  }
+
+  /**
+   * Forgets every duration recorded.
+   */
+  public void reset() {
+    for(int i = 0; i < BUCKETS; i++) {
+      this.counts[i].reset();
+    }
+    this.sum.reset();
+    this.max.reset();
+  }
+
+  /**
+   * Appends this histogram in the OpenMetrics text format, in seconds.
+   * @param out, the text to append to
+   * @param name, the metric name, ending in _seconds
+   * @param help, a description of the metric
+   */
+  public void appendOpenMetrics(StringBuilder out, String name, String help) {
+    long[] counts = this.snapshot();
+    out.append("# TYPE ").append(name).append(" histogram\n");
+    out.append("# UNIT ").append(name).append(" seconds\n");
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    long cumulative = 0;
+    for(int i = 0; i < BUCKETS - 1; i++) {
+      cumulative += counts[i];
+      if(i >= FIRST_WRITTEN) {
+        out.append(name).append("_bucket{le=\"").append((1L << i) / 1e9).append("\"} ")
+          .append(cumulative).append('\n');
+      }
+    }
+    cumulative += counts[BUCKETS - 1];
+    out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+    out.append(name).append("_count ").append(cumulative).append('\n');
+    out.append(name).append("_sum ").append(this.getSumNanos() / 1e9).append('\n');
+  }
+
+  // Reads every bucket once, so that counts written together agree
+  private long[] snapshot() {
+    long[] counts = new long[BUCKETS];
+    for(int i = 0; i < BUCKETS; i++) {
+      counts[i] = this.counts[i].sum();
+    }
+    return counts;
+  }
+}
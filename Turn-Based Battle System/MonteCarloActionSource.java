@@ -0,0 +1,508 @@
+/*************************************************************************
+ *  Compilation:  javac MonteCarloActionSource.java
+ *  Execution:    java -Djava.awt.headless=true MonteCarloActionSource [battles] [ms]
+ *
+ *  Action source that searches for each hero's move with Monte Carlo tree
+ *  search instead of picking it from fixed odds. For every decision it
+ *  copies the battle into a BattleState and, until its time budget is
+ *  spent, repeatedly plays the battle out from there: through the tree of
+ *  moves already explored, choosing each move by UCB1, and then at random,
+ *  the way a RandomActionSource plays, until one party is defeated. A won
+ *  playout scores 1 and a lost one 0; the statistics of every move made in
+ *  the tree are updated from the point of view of the party that made it,
+ *  so the search assumes the opponents play their best as well.
+ *
+ *  Dodges are not part of the tree: each playout rolls them afresh and a
+ *  node stands for the sequence of moves leading to it whatever their
+ *  outcome ("open loop" search). A move is an attack or magic attack on a
+ *  given opponent, a cluster attack or defending; single target moves on
+ *  dead heroes are skipped.
+ *
+ *  The search is root parallel: every worker thread grows its own tree
+ *  with its own random number generator, and the visit counts of the
+ *  first moves are summed over the workers when the budget runs out. The
+ *  most visited move is made, and its target is returned by the following
+ *  call to chooseTarget. A decision takes the time budget plus the length
+ *  of one playout, so a budget of 50 ms keeps the game responsive.
+ *
+ *  Playouts follow the turn order given to the constructor: either whole
+ *  party turns in order of speed, as a BattleEngine plays by default, or
+ *  the per-hero initiative order of BattleEngine.setInitiativeOrder(true).
+ *  In initiative order, heroes of equal speed move as the engine's queue
+ *  moves them: the party the engine schedules first goes first.
+ *
+ *  Version 1.0
+ *************************************************************************/
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class MonteCarloActionSource implements ActionSource {
+  // Weight of the exploration term of UCB1
+  private static final double EXPLORATION = Math.sqrt(2);
+  // Moves after which an unfinished playout is scored by remaining health
+  private static final int MAX_PLAYOUT_MOVES = 2000;
+
+  private final long budgetNanos;
+  private final int threads;
+  private final boolean initiativeOrder;
+  private final SplittableRandom seeds;
+  private final ExecutorService pool;
+  // The target of the move returned by the last call to chooseCommand
+  private int target;
+  private long iterations;
+
+  /**
+   * Constructor 1 - Searches on every core, with playouts in whole party
+   * turns.
+   * @param budgetMillis, the time to search for each move, in milliseconds
+   */
+  public MonteCarloActionSource(long budgetMillis) {
+    this(budgetMillis, Runtime.getRuntime().availableProcessors(), false,
+         new SplittableRandom().nextLong());
+  }
+
+  /**
+   * Constructor 2
+   * @param budgetMillis, the time to search for each move, in milliseconds
+   * @param threads, the number of trees to grow in parallel
+   * @param initiativeOrder, true if the battle is played in initiative order
+   * @param seed, the seed of the playouts' random number generators
+   */
+  public MonteCarloActionSource(long budgetMillis, int threads, boolean initiativeOrder,
+                                long seed) {
+    if(budgetMillis <= 0 || threads < 1) {
+      throw new RuntimeException("Need a positive time budget and at least 1 thread.");
+    }
+    this.budgetNanos = budgetMillis * 1000000L;
+    this.threads = threads;
+    this.initiativeOrder = initiativeOrder;
+    this.seeds = new SplittableRandom(seed);
+    this.target = -1;
+    if(threads == 1) {
+      this.pool = null;
+    }
+    else {
+      // Daemon threads, so that an unused source does not keep the game running
+      this.pool = Executors.newFixedThreadPool(threads, runnable -> {
+        Thread thread = new Thread(runnable, "MonteCarloActionSource");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+
+  /**
+   * Searches for the given hero's best move and returns it, i.e. "attack",
+   * "magic", "cluster" or "defend".
+   */
+  public String chooseCommand(Party allies, int heroIndex, Party opponents) {
+    BattleState root = new BattleState(allies, opponents);
+    // The engine's initiative queue, if any, says which party wins ties
+    InitiativeQueue initiative = allies.getInitiative();
+    int firstSide = initiative == null || initiative.getFirstParty() == allies ? 0 : 1;
+    int move = this.search(root, heroIndex, firstSide);
+    int size = opponents.getHeroes().length;
+    if(move < 2 * size) {
+      this.target = move % size;
+      return Party.COMMANDS[move < size ? BattleState.ATTACK : BattleState.MAGIC];
+    }
+    this.target = -1;
+    return Party.COMMANDS[move == 2 * size ? BattleState.CLUSTER : BattleState.DEFEND];
+  }
+
+  /**
+   * Returns the target of the move found by the last call to chooseCommand,
+   * or a random living opponent if that move had none.
+   */
+  public int chooseTarget(Party allies, int heroIndex, Party opponents) {
+    if(this.target < 0 || !(opponents.getHeroes()[this.target].getAlive())) {
+      return opponents.randomAliveIndex(this.seeds);
+    }
+    return this.target;
+  }
+
+  // Retrieves the number of playouts made by the last search
+  public long getIterations() {
+    return this.iterations;
+  }
+
+  /**
+   * Stops the worker threads. The source must not be used afterwards.
+   */
+  public void shutdown() {
+    if(this.pool != null) {
+      this.pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Searches from a state for the move of hero heroIndex of party 0 and
+   * returns it, encoded as in Search.
+   * @param firstSide, the side whose heroes move first on ties in speed
+   */
+  private int search(BattleState root, int heroIndex, int firstSide) {
+    int[] sequence = this.turnSequence(root, firstSide);
+    int start = 0;
+    while(sequence[start] != heroIndex) {
+      start++;
+    }
+    long deadline = System.nanoTime() + this.budgetNanos;
+
+    List<Search> searches = new ArrayList<Search>();
+    for(int i = 0; i < this.threads; i++) {
+      searches.add(new Search(root, sequence, start, deadline, this.seeds.split()));
+    }
+    Search total = searches.get(0);
+    try {
+      if(this.pool == null) {
+        total.call();
+      }
+      else {
+        List<Future<Search>> futures = this.pool.invokeAll(searches);
+        for(Future<Search> future : futures) {
+          future.get();
+        }
+        for(int i = 1; i < searches.size(); i++) {
+          total.add(searches.get(i));
+        }
+      }
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("The search was interrupted.", e);
+    }
+    catch(ExecutionException e) {
+      throw new RuntimeException("A search failed.", e.getCause());
+    }
+    this.iterations = total.iterations;
+    return total.bestMove();
+  }
+
+  /**
+   * Returns the indices in the state of every hero, in the order in which
+   * they move: either party 0's heroes and then party 1's, each in their
+   * party's speed order, or all heroes from fastest to slowest, firstSide's
+   * first on ties and then by slot, as InitiativeQueue orders them.
+   */
+  private int[] turnSequence(BattleState state, int firstSide) {
+    int[] sequence = new int[state.getSize(0) + state.getSize(1)];
+    if(!(this.initiativeOrder)) {
+      for(int side = 0, k = 0; side < 2; side++) {
+        for(int rank = 0; rank < state.getSize(side); rank++) {
+          sequence[k++] = state.getIndex(side, state.getSlotBySpeed(side, rank));
+        }
+      }
+      return sequence;
+    }
+    // Stable insertion sort by descending speed of firstSide's heroes and
+    // then the other side's keeps firstSide first on ties
+    for(int k = 0, n = 0; k < 2; k++) {
+      int side = k == 0 ? firstSide : 1 - firstSide;
+      for(int slot = 0; slot < state.getSize(side); slot++, n++) {
+        int i = state.getIndex(side, slot);
+        int j = n - 1;
+        while(j >= 0 && state.getSpeed(sequence[j]) < state.getSpeed(i)) {
+          sequence[j + 1] = sequence[j];
+          j--;
+        }
+        sequence[j + 1] = i;
+      }
+    }
+    return sequence;
+  }
+
+  /**
+   * A node of a search tree: a decision of one hero, with the statistics of
+   * each of its moves. Moves are numbered, for an opposing party of m
+   * heroes, 0 to m - 1 for attacking and m to 2m - 1 for using magic on
+   * that opponent, 2m for a cluster attack and 2m + 1 for defending.
+   */
+  private static class Node {
+    final int actor;
+    final int[] visits;
+    final double[] scores;
+    // Decisions after each move; a chain, as dodges and deaths can make
+    // different heroes move next after the same sequence of moves
+    final Node[] children;
+    int total;
+    Node sibling;
+
+    Node(int actor, int moves) {
+      this.actor = actor;
+      this.visits = new int[moves];
+      this.scores = new double[moves];
+      this.children = new Node[moves];
+    }
+
+    // Retrieves the decision of the given hero after a move, creating it if needed
+    Node child(int move, int actor, int moves) {
+      Node node = this.children[move];
+      while(node != null && node.actor != actor) {
+        node = node.sibling;
+      }
+      if(node == null) {
+        node = new Node(actor, moves);
+        node.sibling = this.children[move];
+        this.children[move] = node;
+      }
+      return node;
+    }
+  }
+
+  /**
+   * One worker's search: grows a tree from the root state until the
+   * deadline.
+   */
+  private static class Search implements Callable<Search> {
+    private final BattleState root;
+    private final BattleState state;
+    private final int[] sequence;
+    private final int start;
+    private final long deadline;
+    private final SplittableRandom random;
+    private final Node tree;
+    private Node[] pathNodes;
+    private int[] pathMoves;
+    private long iterations;
+
+    Search(BattleState root, int[] sequence, int start, long deadline,
+           SplittableRandom random) {
+      this.root = root;
+      this.state = root.copy();
+      this.sequence = sequence;
+      this.start = start;
+      this.deadline = deadline;
+      this.random = random;
+      this.tree = new Node(sequence[start], moveCount(root, sequence[start]));
+      this.pathNodes = new Node[16];
+      this.pathMoves = new int[16];
+    }
+
+    public Search call() {
+      do {
+        this.iterate();
+        this.iterations++;
+      } while(System.nanoTime() < this.deadline);
+      return this;
+    }
+
+    // Plays out the battle once and updates the statistics of the moves made in the tree
+    private void iterate() {
+      BattleState state = this.state;
+      state.copyFrom(this.root);
+      Node node = this.tree;
+      int position = this.start;
+      int depth = 0;
+      int moves = 0;
+      boolean expanded = false;
+
+      while(true) {
+        int actor = this.sequence[position];
+        int move;
+        if(expanded) {
+          move = randomMove(state, actor, this.random);
+        }
+        else {
+          move = select(state, node);
+          if(depth == this.pathNodes.length) {
+            this.pathNodes = Arrays.copyOf(this.pathNodes, 2 * depth);
+            this.pathMoves = Arrays.copyOf(this.pathMoves, 2 * depth);
+          }
+          this.pathNodes[depth] = node;
+          this.pathMoves[depth] = move;
+          depth++;
+          // A move tried for the first time ends the tree; the rest is random
+          expanded = node.visits[move] == 0;
+        }
+        play(state, actor, move, this.random);
+        moves++;
+        if(state.isDefeated(0) || state.isDefeated(1) || moves == MAX_PLAYOUT_MOVES) {
+          break;
+        }
+        do {
+          position = position + 1 == this.sequence.length ? 0 : position + 1;
+        } while(!(state.getAlive(this.sequence[position])));
+        if(!(expanded)) {
+          int next = this.sequence[position];
+          node = node.child(move, next, moveCount(state, next));
+        }
+      }
+
+      double score = score(state);
+      for(int i = 0; i < depth; i++) {
+        Node decision = this.pathNodes[i];
+        int move = this.pathMoves[i];
+        decision.visits[move]++;
+        decision.scores[move] += decision.actor < state.getSize(0) ? score : 1 - score;
+        decision.total++;
+      }
+    }
+
+    // Adds another worker's statistics of the first moves to this one's
+    void add(Search other) {
+      for(int move = 0; move < this.tree.visits.length; move++) {
+        this.tree.visits[move] += other.tree.visits[move];
+        this.tree.scores[move] += other.tree.scores[move];
+      }
+      this.tree.total += other.tree.total;
+      this.iterations += other.iterations;
+    }
+
+    // Returns the most visited first move, the best scoring one on ties
+    int bestMove() {
+      Node tree = this.tree;
+      int best = -1;
+      for(int move = 0; move < tree.visits.length; move++) {
+        if(!(isLegal(this.root, tree.actor, move)) ) {
+          continue;
+        }
+        if(best < 0 || tree.visits[move] > tree.visits[best]
+             || (tree.visits[move] == tree.visits[best]
+                   && tree.scores[move] > tree.scores[best])) {
+          best = move;
+        }
+      }
+      return best;
+    }
+  }
+
+  /**
+   * Chooses a legal move at a node by UCB1, trying every move once first.
+   */
+  private static int select(BattleState state, Node node) {
+    double logTotal = Math.log(Math.max(1, node.total));
+    int best = -1;
+    double bestValue = Double.NEGATIVE_INFINITY;
+    for(int move = 0; move < node.visits.length; move++) {
+      if(!(isLegal(state, node.actor, move))) {
+        continue;
+      }
+      int visits = node.visits[move];
+      if(visits == 0) {
+        return move;
+      }
+      double value = node.scores[move] / visits + EXPLORATION * Math.sqrt(logTotal / visits);
+      if(value > bestValue) {
+        bestValue = value;
+        best = move;
+      }
+    }
+    return best;
+  }
+
+  // Returns the number of moves of the hero at the given index, legal or not
+  private static int moveCount(BattleState state, int actor) {
+    return 2 * state.getSize(actor < state.getSize(0) ? 1 : 0) + 2;
+  }
+
+  // Returns true unless the move targets a dead opponent
+  private static boolean isLegal(BattleState state, int actor, int move) {
+    int other = actor < state.getSize(0) ? 1 : 0;
+    int size = state.getSize(other);
+    if(move >= 2 * size) {
+      return true;
+    }
+    return state.getAlive(state.getIndex(other, move % size));
+  }
+
+  /**
+   * Returns a random move, chosen as a RandomActionSource chooses it.
+   */
+  private static int randomMove(BattleState state, int actor, SplittableRandom random) {
+    int other = actor < state.getSize(0) ? 1 : 0;
+    int size = state.getSize(other);
+    int command = Party.randomCommandIndex(random);
+    if(command == BattleState.ATTACK) {
+      return state.randomAliveSlot(other, random);
+    }
+    if(command == BattleState.MAGIC) {
+      return size + state.randomAliveSlot(other, random);
+    }
+    return command == BattleState.CLUSTER ? 2 * size : 2 * size + 1;
+  }
+
+  // Makes a move for the hero at the given index
+  private static void play(BattleState state, int actor, int move, SplittableRandom random) {
+    int other = actor < state.getSize(0) ? 1 : 0;
+    int size = state.getSize(other);
+    if(move < size) {
+      state.attack(actor, state.getIndex(other, move), false, random);
+    }
+    else if(move < 2 * size) {
+      state.magic(actor, state.getIndex(other, move - size), random);
+    }
+    else if(move == 2 * size) {
+      state.cluster(actor, random);
+    }
+    else {
+      state.defend(actor);
+    }
+  }
+
+  /**
+   * Scores a playout for party 0: 1 for a win, 0 for a loss, and party 0's
+   * share of the remaining health if the playout was cut short.
+   */
+  private static double score(BattleState state) {
+    if(state.isDefeated(1)) {
+      return 1;
+    }
+    if(state.isDefeated(0)) {
+      return 0;
+    }
+    double health0 = 0;
+    double health1 = 0;
+    for(int i = 0; i < state.getSize(0); i++) {
+      health0 += state.getCurrentHealth(i);
+    }
+    for(int i = state.getSize(0); i < state.getSize(0) + state.getSize(1); i++) {
+      health1 += state.getCurrentHealth(i);
+    }
+    return health0 / (health0 + health1);
+  }
+
+  // Plays battles between a searching and a random party and prints the win rate
+  public static void main(String[] args) {
+    int battles = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+    long millis = args.length > 1 ? Long.parseLong(args[1]) : 50;
+    
+    Hero[] heroes = new Hero[4];
+    heroes[0] = new Hero(95, 45, 85, 25, 10, 30, 25, "knight.png", "Knight");
+    heroes[1] = new Hero(55, 50, 60, 45, 25, 60, 80, "thief.png", "Thief");
+    heroes[2] = new Hero(65, 10, 45, 65, 90, 70, 55, "mage.png", "Mage");
+    heroes[3] = new Hero(55, 70, 30, 60, 15, 30, 95, "assassin.png", "Assassin");
+    
+    Hero[] enemies = new Hero[4];
+    enemies[0] = new Hero(100, 80, 80, 30, 80, 70, 80, "skeleton.png", "Skeleton King");
+    enemies[1] = new Hero(85, 85, 60, 30, 60, 60, 25, "zombie.png", "Zombie");
+    enemies[2] = new Hero(90, 70, 60, 65, 85, 75, 60, "fireelemental.png", "Fire Elemental");
+    enemies[3] = new Hero(85, 65, 50, 70, 75, 65, 30, "ghost.png", "Ghost");
+    
+    Party party0 = new Party(heroes);
+    Party party1 = new Party(enemies);
+    System.out.println("Random against random: "
+                         + WinRateEstimator.estimate(party0, party1, 100000));
+    
+    MonteCarloActionSource search = new MonteCarloActionSource(millis);
+    SplittableRandom random = new SplittableRandom(42);
+    int wins = 0;
+    for(int i = 0; i < battles; i++) {
+      Party searching = party1.copy();
+      BattleEngine engine = new BattleEngine(party0.copy(), new RandomActionSource(random),
+                                             searching, search, random);
+      if(engine.run() == searching) {
+        wins++;
+      }
+    }
+    search.shutdown();
+    System.out.printf("Search (%d ms) against random: party 1 won %d of %d battles%n",
+                      millis, wins, battles);
+  }
+}
@@ -2,26 +2,82 @@
  *  Compilation:  javac Party.java
  *  Execution:    java Party
  *
- *  Secondary atomic object. Object containg array of four heroes to be utilized 
- *  in a battle. A party instance stores four heroes and subsequently is meant to be stored
+ *  Secondary atomic object. Object containg array of heroes to be utilized 
+ *  in a battle. A party instance stores one or more heroes (four in the game,
+ *  any number in simulated raids) and subsequently is meant to be stored
  *  in a Battle instance, alongside another party instance, to begin battling.
  *
  *  Version 1.0
  *************************************************************************/
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
+
 public class Party {
-  private Hero[] heroes = new Hero[4];
+  // The four moves, indexed by the values randomCommandIndex returns
+  public static final String[] COMMANDS = {"attack", "magic", "cluster", "defend"};
+  
+  // Largest party sorted by insertion sort rather than by sorting packed keys
+  private static final int INSERTION_SORT_SIZE = 16;
+  
+  private Hero[] heroes;
+  // Indices of the heroes in order of ascending current speed, and the
+  // position of each hero in that order
+  private int[] speedOrder;
+  private int[] speedRank;
+  // Bit i is set while hero i is alive, kept up to date by the heroes
+  private long[] aliveBits;
+  private int aliveCount;
+  // The initiative queue of the battle this party is in, if any
+  private InitiativeQueue initiative;
   
   /**
-   * Constructor
-   * @param heroes, the array of 4 heroes that will make up the party
+   * Constructor - The given heroes, not copies of them, become the members
+   * of the party, stored in order of ascending speed. The given array is
+   * not changed. A hero can be a member of only one party at a time, so a
+   * hero already in another party, or given more than once, is replaced
+   * by a copy of itself.
+   * @param heroes, the array of at least 1 hero that will make up the party
    */
   public Party(Hero [] heroes) {
-    if(heroes.length != 4) {
-      throw new RuntimeException("A party must have 4 filled hero slots.");
+    if(heroes.length == 0) {
+      throw new RuntimeException("A party must have at least 1 hero.");
+    }
+    this.join(sortAscendingSpeed(heroes), true);
+  }
+  
+  /**
+   * Returns a new party holding copies of this party's heroes, in
+   * the same order, so a battle can be fought without changing this party.
+   */
+  public Party copy() {
+    Hero[] copies = new Hero[this.heroes.length];
+    for(int i = 0; i < copies.length; i++) {
+      copies[i] = this.heroes[i].copy();
+    }
+    Party copy = new Party();
+    copy.join(copies, false);
+    return copy;
+  }
+  
+  /**
+   * Returns a party of the given heroes, not copies of them, kept in the
+   * given order rather than sorted by speed, e.g. to rebuild a party
+   * exactly as it was recorded. Heroes are copied as by the constructor.
+   * @param heroes, the array of at least 1 hero that will make up the party
+   */
+  public static Party inGivenOrder(Hero[] heroes) {
+    if(heroes.length == 0) {
+      throw new RuntimeException("A party must have at least 1 hero.");
     }
-    this.heroes = sortAscendingSpeed(heroes);
+    Party party = new Party();
+    party.join(heroes.clone(), true);
+    return party;
   }
   
+  // Used by copy() and inGivenOrder()
+  private Party() { }
+  
   /**
    * Returns the object's current hero array.
    */
@@ -30,65 +86,236 @@ public class Party {
   }
   
   /**
-   * Sets this object's hero array to a given hero array.
+   * Returns the indices of the heroes in order of ascending current speed,
+   * kept up to date as speeds change. Heroes of equal speed are in index
+   * order. The returned array must not be changed.
+   */
+  public int[] getSpeedOrder() {
+    return this.speedOrder;
+  }
+  
+  /**
+   * Sets this object's hero array to a copy of a given hero array, which
+   * is kept in the given order. The heroes move to this party from any
+   * party they were in, which can no longer battle until it is given new
+   * heroes (BattleEngine rejects it); a hero given more than once is
+   * replaced by a copy of itself.
    * @param heroes, the hero array to be set as this object's hero array 
    */
   public void setHeroes(Hero[] heroes) {
-    if(heroes.length != 4) {
-      throw new RuntimeException("A party must have 4 filled hero slots.");
+    if(heroes.length == 0) {
+      throw new RuntimeException("A party must have at least 1 hero.");
     }
-    this.heroes = heroes;     
+    this.join(heroes.clone(), false);
+  }
+  
+  /**
+   * Makes the given heroes this party's members and rebuilds the alive mask.
+   * The members being replaced stop reporting to this party. A hero
+   * appearing earlier in the array is replaced by a copy, as is, if
+   * copyShared is true, a hero still held by another party.
+   * @param heroes, the new members, which this party takes ownership of
+   * @param copyShared, true to copy heroes held by another party
+   */
+  private void join(Hero[] heroes, boolean copyShared) {
+    if(this.heroes != null) {
+      for(Hero hero : this.heroes) {
+        if(hero != null && hero.getParty() == this && this.holds(hero)) {
+          hero.setParty(null, -1);
+        }
+      }
+    }
+    this.heroes = heroes;
+    this.initiative = null;
+    this.speedOrder = new int[heroes.length];
+    this.speedRank = new int[heroes.length];
+    sortBySpeed(heroes, this.speedOrder);
+    for(int k = 0; k < this.speedOrder.length; k++) {
+      this.speedRank[this.speedOrder[k]] = k;
+    }
+    this.aliveBits = new long[(heroes.length + 63) >>> 6];
+    this.aliveCount = 0;
+    for(int i = 0; i < heroes.length; i++) {
+      Hero hero = heroes[i];
+      if(hero == null) {
+        continue;
+      }
+      // Heroes before this one have already joined, so a repeat holds an earlier slot
+      Party owner = hero.getParty();
+      if((owner == this && hero.getSlot() < i && this.holds(hero))
+         || (copyShared && owner != null && owner != this && owner.holds(hero))) {
+        hero = hero.copy();
+        heroes[i] = hero;
+      }
+      hero.setParty(this, i);
+      this.setAlive(i, hero.getAlive());
+    }
+  }
+  
+  // Returns true if the given hero is still the member of this party it last joined as
+  boolean holds(Hero hero) {
+    int slot = hero.getSlot();
+    return this.heroes != null && slot >= 0 && slot < this.heroes.length
+      && this.heroes[slot] == hero;
+  }
+  
+  // Returns true if no member has moved to another party since joining this one
+  boolean holdsAll() {
+    for(Hero hero : this.heroes) {
+      if(hero != null && (hero.getParty() != this || !(this.holds(hero)))) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  // Called by the hero at the given index whenever it dies or revives
+  void setAlive(int slot, boolean alive) {
+    long bit = 1L << slot;
+    boolean wasAlive = (this.aliveBits[slot >>> 6] & bit) != 0;
+    if(alive && !wasAlive) {
+      this.aliveBits[slot >>> 6] |= bit;
+      this.aliveCount++;
+    }
+    if(!alive && wasAlive) {
+      this.aliveBits[slot >>> 6] &= ~bit;
+      this.aliveCount--;
+    }
+    if(alive != wasAlive && this.initiative != null) {
+      this.initiative.aliveChanged(this, slot, alive);
+    }
+  }
+  
+  // Called by the hero at the given index whenever its speed changes; moves
+  // it along the speed order to its new place
+  void speedChanged(int slot) {
+    int k = this.speedRank[slot];
+    while(k > 0 && this.slowerThan(slot, this.speedOrder[k - 1])) {
+      this.speedOrder[k] = this.speedOrder[k - 1];
+      this.speedRank[this.speedOrder[k]] = k;
+      k--;
+    }
+    while(k < this.speedOrder.length - 1 && this.slowerThan(this.speedOrder[k + 1], slot)) {
+      this.speedOrder[k] = this.speedOrder[k + 1];
+      this.speedRank[this.speedOrder[k]] = k;
+      k++;
+    }
+    this.speedOrder[k] = slot;
+    this.speedRank[slot] = k;
+    if(this.initiative != null) {
+      this.initiative.speedChanged(this, slot);
+    }
+  }
+  
+  // Returns true if hero a comes before hero b in the speed order
+  private boolean slowerThan(int a, int b) {
+    int speedA = this.heroes[a].getSpeed();
+    int speedB = this.heroes[b].getSpeed();
+    return speedA < speedB || (speedA == speedB && a < b);
+  }
+  
+  // Sets the initiative queue to be told about changes to the heroes
+  void setInitiative(InitiativeQueue initiative) {
+    this.initiative = initiative;
+  }
+
+  // Retrieves the initiative queue of the battle this party is in, or null
+  InitiativeQueue getInitiative() {
+    return this.initiative;
+  }
+  
+  /**
+   * Returns the number of party members still alive.
+   */
+  public int getAliveCount() {
+    return this.aliveCount;
   }
   
   /**
    * Makes each member of a given party choose a random move
-   * and use it on a random opposing party member.
+   * and use it on a random opposing party member. Stops early
+   * if the opposing party is defeated.
    * @param opposing, the party to be attacked
    */
   public void randomAttack(Party opposing) {
-    for(int i = 0; i < 4; i++) {
+    this.randomAttack(opposing, ThreadLocalRandom.current());
+  }
+  
+  /**
+   * Same as randomAttack(opposing), but makes every random choice,
+   * including dodges, with the given random number generator.
+   * @param opposing, the party to be attacked
+   * @param random, the random number generator to use
+   */
+  public void randomAttack(Party opposing, RandomGenerator random) {
+    for(int k = 0; k < this.speedOrder.length; k++) {
+      int i = this.speedOrder[k];
       if(!(this.heroes[i].getAlive())) {
         continue;
       }
+      if(opposing.isDefeated()) {
+        return;
+      }
       
-      String attack = getAttack();
+      String attack = randomCommand(random);
       
       if(attack.equals("cluster")) {
-        this.heroes[i].cluster(opposing);
+        this.heroes[i].cluster(opposing, random, null);
         continue;
       }
       if(attack.equals("defend")) {
-        this.heroes[i].defend();
+        this.heroes[i].defend(null);
         continue;
       }
       
-      Hero randomHero = getRandomAliveHero(opposing);
+      Hero randomHero = opposing.heroes[opposing.randomAliveIndex(random)];
       if(attack.equals("attack")) {
-        this.heroes[i].attack(randomHero, false);
+        this.heroes[i].attack(randomHero, false, random, null);
         continue;
       }
       if(attack.equals("magic")) {
-        this.heroes[i].magic(randomHero);
+        this.heroes[i].magic(randomHero, random, null);
         continue;
       }
     }
   }
   
   /**
-   * Randomly choses an alive party member from a given party
-   * @param party, any party with at least 1 alive hero
+   * Randomly choses an alive party member from this party and
+   * returns its index. Every alive hero is equally likely to be
+   * chosen. The party must have at least 1 alive hero.
    */
-  private Hero getRandomAliveHero(Party party) {
-    while(true) {
-      double rndm = Math.random() * 100;
-      for(int i = 0; i < 4; i++) {
-        if(rndm <= 25) {
-          if(party.heroes[i].getAlive()) {
-            return party.heroes[i];
-          }
-        } 
-      } 
+  public int randomAliveIndex() {
+    return this.randomAliveIndex(ThreadLocalRandom.current());
+  }
+  
+  /**
+   * Same as randomAliveIndex(), using the given random number generator.
+   * @param random, the random number generator to use
+   */
+  public int randomAliveIndex(RandomGenerator random) {
+    if(this.aliveCount == 0) {
+      throw new RuntimeException("The party has no living hero.");
+    }
+    int n = random.nextInt(this.aliveCount);
+    int w = 0;
+    while(n >= Long.bitCount(this.aliveBits[w])) {
+      n -= Long.bitCount(this.aliveBits[w]);
+      w++;
+    }
+    return (w << 6) + nthSetBit(this.aliveBits[w], n);
+  }
+  
+  /**
+   * Returns the index of the nth set bit (counting from 0) of a bit mask.
+   * @param mask, a bit mask with more than n bits set
+   * @param n, the number of lower set bits to skip
+   */
+  public static int nthSetBit(long mask, int n) {
+    for(int i = 0; i < n; i++) {
+      mask &= mask - 1;
     }
+    return Long.numberOfTrailingZeros(mask);
   }
   
   /**
@@ -96,50 +323,81 @@ public class Party {
    * Attack - 35% chance. Magic - 35% chance. Cluster - 25% chance
    * Defend - 5% chance
    */
-  private String getAttack() {
-    double rndm = Math.random() * 100;
+  public String randomCommand() {
+    return this.randomCommand(ThreadLocalRandom.current());
+  }
+  
+  /**
+   * Same as randomCommand(), using the given random number generator.
+   * @param random, the random number generator to use
+   */
+  public String randomCommand(RandomGenerator random) {
+    return COMMANDS[randomCommandIndex(random)];
+  }
+  
+  /**
+   * Randomly choses an attack, with the odds of randomCommand(), and returns
+   * its index in COMMANDS.
+   * @param random, the random number generator to use
+   */
+  public static int randomCommandIndex(RandomGenerator random) {
+    double rndm = random.nextDouble() * 100;
     if(rndm <= 35) {
-      return "attack";
+      return 0;
     }
     if(rndm <= 70) {
-      return "magic";
+      return 1;
     }
     if(rndm <= 95) {
-      return "cluster";
+      return 2;
     }
-    if(rndm <= 100) {
-      return "defend";
-    }
-    return "";
+    return 3;
   }
   
   /**
-   * Returns a given hero array sorted in order of ascending speed
-   * @param heroes, a hero array of size 4
+   * Returns a given hero array sorted in order of ascending speed. Heroes
+   * with the same speed keep their order. The returned array holds the
+   * given heroes themselves, and neither the array nor the heroes are changed.
+   * @param heroes, a hero array of any size
    */
   public static Hero[] sortAscendingSpeed(Hero [] heroes) {
-    Hero[] sortedHeroes = new Hero[4];
-    int[] unsortedSpeeds = new int[4];
-    for(int i = 0; i < 4; i++) {
-      unsortedSpeeds[i] = heroes[i].getSpeed();
-    }
-    int[] sortedSpeeds = sortArray(unsortedSpeeds);
-    for(int i = 0; i < 4; i++) {
-      for(int j = 0; j < 4; j++) {
-        if(sortedSpeeds[i] == heroes[j].getSpeed() &&
-           heroes[j].getSpeed() != -1) {
-          sortedHeroes[i] = new Hero(heroes[j].getMaxHealth(),
-                                     heroes[j].getAttack(), heroes[j].getDefense(), 
-                                     heroes[j].getEvasion(), heroes[j].getMagic(), 
-                                     heroes[j].getMagicResist(), heroes[j].getSpeed(), 
-                                     heroes[j].getAliveImg(), heroes[j].getDeadImg(), 
-                                     heroes[j].getName());
-          heroes[j].setSpeed(-1);
-          break;
+    int[] order = new int[heroes.length];
+    sortBySpeed(heroes, order);
+    Hero[] sortedHeroes = new Hero[heroes.length];
+    for(int k = 0; k < order.length; k++) {
+      sortedHeroes[k] = heroes[order[k]];
+    }
+    return sortedHeroes;
+  }
+  
+  /**
+   * Fills an array with the indices of the given heroes in order of
+   * ascending speed, heroes with the same speed in index order. Small
+   * parties are insertion sorted in place; larger ones are sorted as
+   * primitive keys, speed in the high half and index in the low half.
+   * @param heroes, a hero array of any size
+   * @param order, an array of the same size to receive the indices
+   */
+  public static void sortBySpeed(Hero[] heroes, int[] order) {
+    if(heroes.length <= INSERTION_SORT_SIZE) {
+      for(int i = 0; i < heroes.length; i++) {
+        int k = i;
+        while(k > 0 && heroes[order[k - 1]].getSpeed() > heroes[i].getSpeed()) {
+          order[k] = order[k - 1];
+          k--;
         }
+        order[k] = i;
       }
+      return;
+    }
+    long[] keys = new long[heroes.length];
+    for(int i = 0; i < heroes.length; i++) {
+      keys[i] = ((long) heroes[i].getSpeed() << 32) | i;
+    }
+    Arrays.sort(keys);
+    for(int k = 0; k < keys.length; k++) {
+      order[k] = (int) keys[k];
     }
-    return sortedHeroes;
   }
   
   /**
@@ -147,18 +405,8 @@ public class Party {
    * @param nonSortedArray, any integer array
    */
   public static int[] sortArray(int[] nonSortedArray) {
-    int[] sortedArray = new int[nonSortedArray.length];
-    int temp;
-    for (int i = 0; i < nonSortedArray.length - 1; i++) {
-      for (int j = 0; j < nonSortedArray.length - 1; j++) {
-        if (nonSortedArray[j] > nonSortedArray[j + 1]) {
-          temp = nonSortedArray[j];
-          nonSortedArray[j] = nonSortedArray[j + 1];
-          nonSortedArray[j + 1] = temp;
-          sortedArray = nonSortedArray;
-        }
-      }
-    }
+    int[] sortedArray = nonSortedArray.clone();
+    Arrays.sort(sortedArray);
     return sortedArray;
   }
   
@@ -166,27 +414,17 @@ public class Party {
    * Returns true if all party members at 0 health, false otherwise.
    */
   public boolean isDefeated() {
-    int deathCount = 0;
-    for(int i = 0; i < 4; i++) {
-      if(!(this.heroes[i].getAlive())) {
-        deathCount++;
-      }
-    }
-    if(deathCount == 4) {
-      return true;
-    }
-    return false;
+    return this.aliveCount == 0;
   }
   
   /**
-   * Returns the array index of a hero within the party.
+   * Returns the array index of a hero within the party, or -1 if
+   * the hero is not a member of this party.
    * @param hero, the hero to be searched for
    */
   public int getIndexOfHero(Hero hero) {
-    for(int i = 0; i < 4; i++) {
-      if(this.heroes[i].equals(hero)) {
-        return i;
-      } 
+    if(hero.getParty() == this && this.holds(hero)) {
+      return hero.getSlot();
     }
     return -1;
   }
@@ -28,8 +28,12 @@ import java.awt.geom.*;
 import java.awt.image.*;
 import java.io.*;
 import java.net.*;
-import java.util.LinkedList;
-import java.util.TreeSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 import javax.imageio.ImageIO;
 import javax.swing.*;
 
@@ -123,7 +127,6 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
 
     // for synchronization
     private static Object mouseLock = new Object();
-    private static Object keyLock = new Object();
 
     // default font
     private static final Font DEFAULT_FONT = new Font("SansSerif", Font.PLAIN, 16);
@@ -138,19 +141,61 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
     // singleton for callbacks: avoids generation of extra .class files
     private static PennDraw std = new PennDraw();
 
-    // the frame for drawing to the screen
+    // the frame for drawing to the screen, and the label showing the onscreen image
     private static JFrame frame;
+    private static JLabel canvas;
+
+    // region of the offscreen image drawn on since it was last copied onscreen
+    private static boolean dirty = false;
+    private static int dirtyMinX, dirtyMinY, dirtyMaxX, dirtyMaxY;
+
+    // number of unfinished beginFrame() calls; nothing is copied onscreen while > 0
+    private static int frameDepth = 0;
 
     // mouse state
     private static boolean mousePressed = false;
     private static double mouseX = 0;
     private static double mouseY = 0;
 
-    // queue of typed key characters
-    private static LinkedList<Character> keysTyped = new LinkedList<Character>();
-
-    // set of key codes currently pressed down
-    private static TreeSet<Integer> keysDown = new TreeSet<Integer>();
+    // ring buffer of typed key characters, written only by the event dispatch
+    // thread and read only by the thread calling nextKeyTyped(); keyTail is the
+    // number of keys ever written and keyHead the number ever read
+    private static final int KEY_BUFFER_SIZE = 256;
+    private static final char[] keysTyped = new char[KEY_BUFFER_SIZE];
+    private static final AtomicLong keyHead = new AtomicLong();
+    private static final AtomicLong keyTail = new AtomicLong();
+
+    // thread parked in awaitKeyTyped(), if any, to be woken by the next key typed
+    private static volatile Thread keyWaiter;
+
+    // bitset of key codes currently pressed down, one bit per key code below
+    // MAX_KEYCODE; larger (extended) key codes are never reported as pressed
+    private static final int MAX_KEYCODE = 1 << 16;
+    private static final AtomicLongArray keysDown = new AtomicLongArray(MAX_KEYCODE / 64);
+
+    // told about pictures drawn, screen copies and keys typed, or null; see setListener()
+    private static volatile Listener listener;
+
+    // decoded images by filename, least recently used first
+    private static final int DEFAULT_IMAGE_CACHE_SIZE = 64;
+    private static int imageCacheSize = DEFAULT_IMAGE_CACHE_SIZE;
+    private static final LinkedHashMap<String, Image> imageCache =
+        new LinkedHashMap<String, Image>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Image> eldest) {
+                if (size() <= imageCacheSize) return false;
+                // its scaled copies go with it (imageCache, then spriteCache, is the lock order)
+                evictSprites(eldest.getValue());
+                return true;
+            }
+        };
+
+    // copies of decoded images scaled to the sizes they are drawn at, in the
+    // screen's pixel format, least recently used first, bounded by total pixels
+    private static final long DEFAULT_SPRITE_CACHE_PIXELS = 16L * 1024 * 1024;
+    private static long spriteCachePixels = DEFAULT_SPRITE_CACHE_PIXELS;
+    private static long spriteCacheUsed = 0;
+    private static final LinkedHashMap<SpriteKey, BufferedImage> spriteCache =
+        new LinkedHashMap<SpriteKey, BufferedImage>(16, 0.75f, true);
   
 
     // singleton pattern: client can't instantiate
@@ -212,6 +257,8 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
         // frame stuff
         ImageIcon icon = new ImageIcon(onscreenImage);
         JLabel draw = new JLabel(icon);
+        canvas = draw;
+        dirty = false;
 
         draw.addMouseListener(std);
         draw.addMouseMotionListener(std);
@@ -1017,8 +1064,22 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
     *  Drawing images.
     *************************************************************************/
 
-    // get an image from the given filename
+    // get an image from the given filename, decoding it only if it is not cached
     private static Image getImage(String filename) {
+        synchronized (imageCache) {
+            Image image = imageCache.get(filename);
+            if (image != null) return image;
+        }
+
+        Image image = loadImage(filename);
+        synchronized (imageCache) {
+            imageCache.put(filename, image);
+        }
+        return image;
+    }
+
+    // read and decode an image from the given filename
+    private static Image loadImage(String filename) {
 
         // to read from file
         ImageIcon icon = new ImageIcon(filename);
@@ -1041,6 +1102,156 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
         return icon.getImage();
     }
 
+    // identifies a decoded image scaled to a given size for a given screen
+    private static final class SpriteKey {
+        private final Image image;
+        private final int width;
+        private final int height;
+        private final GraphicsConfiguration config;
+
+        SpriteKey(Image image, int width, int height, GraphicsConfiguration config) {
+            this.image = image;
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof SpriteKey)) return false;
+            SpriteKey k = (SpriteKey) o;
+            return image == k.image && width == k.width && height == k.height && config == k.config;
+        }
+
+        public int hashCode() {
+            int h = System.identityHashCode(image);
+            h = 31 * h + width;
+            h = 31 * h + height;
+            return 31 * h + System.identityHashCode(config);
+        }
+    }
+
+    // get a copy of an image scaled to w-by-h pixels, scaling it only if it is not cached
+    private static Image getSprite(Image image, int w, int h) {
+        GraphicsConfiguration config = frame.getGraphicsConfiguration();
+        SpriteKey key = new SpriteKey(image, w, h, config);
+        synchronized (spriteCache) {
+            BufferedImage sprite = spriteCache.get(key);
+            if (sprite != null) return sprite;
+        }
+
+        // sprites larger than the whole cache are not worth keeping
+        if ((long) w * h > spriteCachePixels) return null;
+
+        BufferedImage sprite;
+        if (config != null) sprite = config.createCompatibleImage(w, h, Transparency.TRANSLUCENT);
+        else                sprite = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = sprite.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.drawImage(image, 0, 0, w, h, null);
+        g.dispose();
+
+        synchronized (spriteCache) {
+            BufferedImage old = spriteCache.put(key, sprite);
+            if (old != null) spriteCacheUsed -= (long) old.getWidth() * old.getHeight();
+            spriteCacheUsed += (long) w * h;
+            trimSpriteCache();
+        }
+        return sprite;
+    }
+
+    // evict least recently drawn sprites until the cache is within its budget
+    private static void trimSpriteCache() {
+        java.util.Iterator<BufferedImage> eldest = spriteCache.values().iterator();
+        while (spriteCacheUsed > spriteCachePixels && eldest.hasNext()) {
+            BufferedImage sprite = eldest.next();
+            spriteCacheUsed -= (long) sprite.getWidth() * sprite.getHeight();
+            eldest.remove();
+        }
+    }
+
+    // discard every scaled copy of the given image, or of all images if it is null
+    private static void evictSprites(Image image) {
+        synchronized (spriteCache) {
+            java.util.Iterator<Map.Entry<SpriteKey, BufferedImage>> it = spriteCache.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<SpriteKey, BufferedImage> entry = it.next();
+                if (image == null || entry.getKey().image == image) {
+                    BufferedImage sprite = entry.getValue();
+                    spriteCacheUsed -= (long) sprite.getWidth() * sprite.getHeight();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Set the total number of pixels of scaled images kept in memory.
+     * Each image drawn at a new size is scaled once, in the screen's
+     * pixel format, and then copied as is until it is evicted.
+     * Use 0 to scale images every time they are drawn.
+     * @param pixels the maximum number of cached pixels
+     * @throws IllegalArgumentException if pixels is negative
+     */
+    public static void setSpriteCachePixels(long pixels) {
+        if (pixels < 0) throw new IllegalArgumentException("sprite cache size must be >= 0");
+        synchronized (spriteCache) {
+            spriteCachePixels = pixels;
+            trimSpriteCache();
+        }
+    }
+
+    /**
+     * Set the number of decoded images kept in memory.  Once more images than
+     * this have been drawn, the least recently drawn image is decoded again
+     * the next time it is drawn.
+     * @param size the maximum number of cached images
+     * @throws IllegalArgumentException if size is negative
+     */
+    public static void setImageCacheSize(int size) {
+        if (size < 0) throw new IllegalArgumentException("image cache size must be >= 0");
+        synchronized (imageCache) {
+            imageCacheSize = size;
+            while (imageCache.size() > imageCacheSize) {
+                String eldest = imageCache.keySet().iterator().next();
+                evictSprites(imageCache.remove(eldest));
+            }
+        }
+    }
+
+    /**
+     * Decode an image again, e.g. after its file has changed on disk,
+     * so that subsequent calls to <tt>picture()</tt> draw the new version.
+     * @param filename the name of the image/picture, e.g., "ball.gif"
+     * @throws IllegalArgumentException if the image cannot be found
+     */
+    public static void reloadImage(String filename) {
+        // Toolkit keeps its own image per filename, which must be flushed
+        // for the file to be read again
+        Image stale;
+        synchronized (imageCache) {
+            stale = imageCache.remove(filename);
+        }
+        if (stale == null) stale = loadImage(filename);
+        else               evictSprites(stale);
+        stale.flush();
+        Image image = loadImage(filename);
+        synchronized (imageCache) {
+            imageCache.put(filename, image);
+        }
+    }
+
+    /**
+     * Discard every cached image, so that each image is decoded again
+     * the next time it is drawn.
+     */
+    public static void clearImageCache() {
+        synchronized (imageCache) {
+            imageCache.clear();
+        }
+        evictSprites(null);
+    }
+
     /**
      * Draw picture (gif, jpg, or png) centered on (x, y).
      * @param x the center x-coordinate of the image
@@ -1093,6 +1304,7 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
      * @throws IllegalArgumentException if the image is corrupt
      */
     public static void picture(double x, double y, String s, double w, double h, double degrees) {
+        long start = System.nanoTime();
         Image image = getImage(s);
         int iw = image.getWidth(null);
         int ih = image.getHeight(null);
@@ -1105,18 +1317,26 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
 
         if (degrees != 0) offscreen.rotate(-Math.toRadians(degrees), xs, ys);
 
-        if (w == 0 && h == 0) // unscaled
-            offscreen.drawImage(image, (int) Math.round(xs - 0.5 * iw), (int) Math.round(ys - 0.5 * ih), null);
-        else {
-            if (w == 0) w = (iw * h) / ih; // scale based on single dimension if only one is provided
-            if (h == 0) h = (ih * w) / iw;
-
-            offscreen.drawImage(image, (int) Math.round(xs - 0.5 * w), (int) Math.round(ys - 0.5 * h),
-                                (int) Math.round(w), (int) Math.round(h), null);
+        if (w == 0) w = (h == 0) ? iw : (iw * h) / ih; // scale based on single dimension if only one is provided
+        if (h == 0) h = (ih * w) / iw;
+        int sw = (int) Math.round(w);
+        int sh = (int) Math.round(h);
+        int sx = (int) Math.round(xs - 0.5 * w);
+        int sy = (int) Math.round(ys - 0.5 * h);
+
+        // blit a cached copy already scaled to size, if it fits in the cache
+        Image sprite = (sw > 0 && sh > 0) ? getSprite(image, sw, sh) : null;
+        if (sprite != null)  offscreen.drawImage(sprite, sx, sy, null);
+        else if (sw == iw && sh == ih) offscreen.drawImage(image, sx, sy, null);
+        else                 offscreen.drawImage(image, sx, sy, sw, sh, null);
+
+        if (degrees != 0) {
+            offscreen.setTransform(t);
+            draw(); // a rotated image may touch anything
         }
-        
-        if (degrees != 0) offscreen.setTransform(t);
-        draw();
+        else draw(sx, sy, sw, sh);
+        Listener l = listener;
+        if (l != null) l.pictureDrawn(System.nanoTime() - start);
     }
     
     
@@ -1134,6 +1354,7 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
      * @throws IllegalArgumentException if the image is corrupt
      */
     public static void picture(double x, double y, Image s, double w, double h, double degrees) {
+      long start = System.nanoTime();
       Image image = s;
       int iw = image.getWidth(null);
       int ih = image.getHeight(null);
@@ -1158,6 +1379,8 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
       
       if (degrees != 0) offscreen.setTransform(t);
       draw();
+      Listener l = listener;
+      if (l != null) l.pictureDrawn(System.nanoTime() - start);
     }
     
 
@@ -1247,9 +1470,12 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
 
         offscreen.drawString(s, (float) (xs + dw * w), (float) (ys + h));
 
-        if (degrees != 0) offscreen.setTransform(t);
-
-        draw();
+        if (degrees != 0) {
+            offscreen.setTransform(t);
+            draw(); // rotated text may touch anything
+        }
+        else draw((int) Math.floor(xs + dw * w), (int) Math.floor(ys + h - metrics.getAscent()),
+                  w + 2, metrics.getAscent() + h + 2);
     }
 
     /**
@@ -1291,11 +1517,77 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
         draw();
     }
 
-    // draw onscreen if defer is false
+    // draw the whole offscreen image onscreen if defer is false
     private static void draw() {
+        draw(0, 0, width, height);
+    }
+
+    // mark a w-by-h pixel region at (x, y) as drawn on, and draw it
+    // onscreen if defer is false and no frame is being built
+    private static void draw(int x, int y, int w, int h) {
         if (defer) return;
-        onscreen.drawImage(offscreenImage, 0, 0, null);
-        frame.repaint();
+        // antialiasing can spill a pixel past the shape's bounds
+        int x0 = Math.max(0, x - 1);
+        int y0 = Math.max(0, y - 1);
+        int x1 = Math.min(width, x + w + 1);
+        int y1 = Math.min(height, y + h + 1);
+        if (x0 >= x1 || y0 >= y1) return;
+
+        if (!dirty) {
+            dirtyMinX = x0;
+            dirtyMinY = y0;
+            dirtyMaxX = x1;
+            dirtyMaxY = y1;
+            dirty = true;
+        }
+        else {
+            dirtyMinX = Math.min(dirtyMinX, x0);
+            dirtyMinY = Math.min(dirtyMinY, y0);
+            dirtyMaxX = Math.max(dirtyMaxX, x1);
+            dirtyMaxY = Math.max(dirtyMaxY, y1);
+        }
+        if (frameDepth == 0) present();
+    }
+
+    // copy the dirty region onscreen and repaint only that part of the window
+    private static void present() {
+        if (!dirty) return;
+        dirty = false;
+        int w = dirtyMaxX - dirtyMinX;
+        int h = dirtyMaxY - dirtyMinY;
+        onscreen.drawImage(offscreenImage, dirtyMinX, dirtyMinY, dirtyMaxX, dirtyMaxY,
+                           dirtyMinX, dirtyMinY, dirtyMaxX, dirtyMaxY, null);
+
+        // the label centers the image when the window is larger than it
+        int ox = Math.max(0, (canvas.getWidth() - width) / 2);
+        int oy = Math.max(0, (canvas.getHeight() - height) / 2);
+        canvas.repaint(ox + dirtyMinX, oy + dirtyMinY, w, h);
+        Listener l = listener;
+        if (l != null && w == width && h == height) l.fullCopy();
+    }
+
+    /**
+     * Start building a frame: until the matching call to <tt>endFrame()</tt>,
+     * drawing methods only record which parts of the canvas they change,
+     * and nothing is copied to the screen. Frames may be nested; only the
+     * outermost <tt>endFrame()</tt> displays the frame. Has no effect on
+     * animation mode, where <tt>show()</tt> displays the whole canvas.
+     */
+    public static void beginFrame() {
+        frameDepth++;
+    }
+
+    /**
+     * Finish building a frame and, if it is the outermost frame, display
+     * everything drawn since <tt>beginFrame()</tt> at once by copying the
+     * smallest rectangle covering all of it to the screen.
+     * @throws RuntimeException if there is no matching call to <tt>beginFrame()</tt>
+     */
+    public static void endFrame() {
+        if (frameDepth == 0)
+            throw new RuntimeException("PennDraw.endFrame() called without PennDraw.beginFrame()");
+        frameDepth--;
+        if (frameDepth == 0 && !defer) present();
     }
 
     /**
@@ -1489,8 +1781,43 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
      * @return true if the user has typed a key, false otherwise
      */
     public static boolean hasNextKeyTyped() {
-        synchronized (keyLock) {
-            return !keysTyped.isEmpty();
+        return keyHead.get() != keyTail.get();
+    }
+
+    /**
+     * Waits until the user has typed a key, without using any processor time
+     * while waiting. Returns as soon as a key is available, or once the
+     * timeout has elapsed, whichever comes first. The key itself is
+     * retrieved with nextKeyTyped().
+     * @param timeoutMillis the longest time to wait in milliseconds, or 0 to
+     * wait until a key is typed
+     * @return true if the user has typed a key, false if the wait timed out
+     * or the calling thread was interrupted
+     * @throws RuntimeException if <tt>timeoutMillis</tt> is negative
+     */
+    public static boolean awaitKeyTyped(long timeoutMillis) {
+        if (timeoutMillis < 0) throw new RuntimeException("timeout must be nonnegative");
+        if (hasNextKeyTyped()) return true;
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        keyWaiter = Thread.currentThread();
+        try {
+            // the waiter is registered before checking again, so a key typed
+            // in between either is seen here or unparks this thread
+            while (!hasNextKeyTyped()) {
+                if (Thread.currentThread().isInterrupted()) return false;
+                if (timeoutMillis == 0) {
+                    LockSupport.park(std);
+                }
+                else {
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0) return false;
+                    LockSupport.parkNanos(std, wait);
+                }
+            }
+            return true;
+        }
+        finally {
+            keyWaiter = null;
         }
     }
 
@@ -1499,12 +1826,16 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
      * a Unicode character corresponding to the key typed (such as 'a' or 'A').
      * It cannot identify action keys (such as F1
      * and arrow keys) or modifier keys (such as control).
+     * Keys must be read by only one thread at a time.
      * @return the next Unicode key typed
+     * @throws NoSuchElementException if no key has been typed
      */
     public static char nextKeyTyped() {
-        synchronized (keyLock) {
-            return keysTyped.removeLast();
-        }
+        long head = keyHead.get();
+        if (head == keyTail.get()) throw new NoSuchElementException();
+        char c = keysTyped[(int) head & (KEY_BUFFER_SIZE - 1)];
+        keyHead.lazySet(head + 1);
+        return c;
     }
 
     /**
@@ -1516,9 +1847,8 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
      * @return true if keycode is currently being pressed, false otherwise
      */
     public static boolean isKeyPressed(int keycode) {
-        synchronized (keyLock) {
-            return keysDown.contains(keycode);
-        }
+        if (keycode < 0 || keycode >= MAX_KEYCODE) return false;
+        return (keysDown.get(keycode >>> 6) & (1L << keycode)) != 0;
     }
 
 
@@ -1526,27 +1856,75 @@ public final class PennDraw implements ActionListener, MouseListener, MouseMotio
      * This method cannot be called directly.
      */
     public void keyTyped(KeyEvent e) {
-        synchronized (keyLock) {
-            keysTyped.addFirst(e.getKeyChar());
-        }
+        long tail = keyTail.get();
+        // if the game has fallen a whole buffer behind, the newest key is dropped
+        if (tail - keyHead.get() == KEY_BUFFER_SIZE) return;
+        keysTyped[(int) tail & (KEY_BUFFER_SIZE - 1)] = e.getKeyChar();
+        // a full store, so it cannot pass the read of keyWaiter below: either the
+        // waiter sees the key or this thread sees the waiter (see awaitKeyTyped)
+        keyTail.set(tail + 1);
+        Listener l = listener;
+        if (l != null) l.keyTyped();
+        Thread waiter = keyWaiter;
+        if (waiter != null) LockSupport.unpark(waiter);
     }
 
     /**
      * This method cannot be called directly.
      */
     public void keyPressed(KeyEvent e) {
-        synchronized (keyLock) {
-            keysDown.add(e.getKeyCode());
-        }
+        int keycode = e.getKeyCode();
+        if (keycode < 0 || keycode >= MAX_KEYCODE) return;
+        // only the event dispatch thread writes the bitset, so get and set cannot race
+        keysDown.set(keycode >>> 6, keysDown.get(keycode >>> 6) | (1L << keycode));
     }
 
     /**
      * This method cannot be called directly.
      */
     public void keyReleased(KeyEvent e) {
-        synchronized (keyLock) {
-            keysDown.remove(e.getKeyCode());
-        }
+        int keycode = e.getKeyCode();
+        if (keycode < 0 || keycode >= MAX_KEYCODE) return;
+        keysDown.set(keycode >>> 6, keysDown.get(keycode >>> 6) & ~(1L << keycode));
+    }
+
+
+   /*************************************************************************
+    *  Monitoring.
+    *************************************************************************/
+
+    /**
+     * Receives events for monitoring the drawing, e.g. to time it. Methods
+     * are called on the thread doing the drawing, or on the event dispatch
+     * thread for keys, and should return quickly.
+     */
+    public interface Listener {
+        /**
+         * Called after a picture has been drawn.
+         * @param nanos the time the picture took to draw in nanoseconds
+         */
+        void pictureDrawn(long nanos);
+
+        /**
+         * Called when the whole drawing buffer, rather than only the part
+         * drawn on, has been copied to the screen.
+         */
+        void fullCopy();
+
+        /**
+         * Called when a key typed has been added to the keys available to
+         * nextKeyTyped().
+         */
+        void keyTyped();
+    }
+
+    /**
+     * Sets the listener to be told about drawing and keys typed, replacing
+     * any listener set before.
+     * @param l the listener, or null for none
+     */
+    public static void setListener(Listener l) {
+        listener = l;
     }
 
     /**
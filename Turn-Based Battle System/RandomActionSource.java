@@ -0,0 +1,54 @@
+/*************************************************************************
+ *  Compilation:  javac RandomActionSource.java
+ *
+ *  Action source that picks moves and targets the same way the enemy party
+ *  does in Party.randomAttack: a random move from Party's fixed odds, used
+ *  on a random living opponent. Given a random number generator, such as a
+ *  SplittableRandom split from a battle's seed, its choices can be
+ *  reproduced; otherwise the calling thread's ThreadLocalRandom is used.
+ *
+ *  Version 1.0
+ *************************************************************************/
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
+
+public class RandomActionSource implements ActionSource {
+  private final RandomGenerator random;
+  
+  /**
+   * Constructor 1 - Uses the calling thread's ThreadLocalRandom.
+   */
+  public RandomActionSource() {
+    this.random = null;
+  }
+  
+  /**
+   * Constructor 2 - Makes every choice with the given random number generator.
+   * @param random, the random number generator to use
+   */
+  public RandomActionSource(RandomGenerator random) {
+    this.random = random;
+  }
+  
+  /**
+   * Returns a random move, chosen with the odds of Party.randomCommand().
+   */
+  public String chooseCommand(Party allies, int heroIndex, Party opponents) {
+    return allies.randomCommand(this.random());
+  }
+  
+  /**
+   * Returns the index of a random living opponent.
+   */
+  public int chooseTarget(Party allies, int heroIndex, Party opponents) {
+    return opponents.randomAliveIndex(this.random());
+  }
+  
+  // ThreadLocalRandom.current() must be looked up by the thread using it
+  private RandomGenerator random() {
+    if(this.random == null) {
+      return ThreadLocalRandom.current();
+    }
+    return this.random;
+  }
+}
@@ -0,0 +1,257 @@
+/*************************************************************************
+ *  Compilation:  javac ReplayLog.java
+ *  Execution:    java -Djava.awt.headless=true ReplayLog file [repeats]
+ *
+ *  A battle recorded by ReplayRecorder, read from a memory-mapped file.
+ *  newEngine() returns a BattleEngine that replays it: its parties are
+ *  rebuilt from the log, its SplittableRandom is seeded with the logged
+ *  seed and each party's action source returns the logged moves, so the
+ *  battle plays out exactly as it was recorded, either headlessly at full
+ *  engine speed with run(), or on screen through Battle.setReplay.
+ *
+ *  Each logged move names the party and hero that made it. If the engine
+ *  asks a different hero to move, e.g. because the rules have changed
+ *  since the battle was recorded, replaying stops with an exception.
+ *
+ *  Version 1.0
+ *************************************************************************/
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.SplittableRandom;
+
+public class ReplayLog {
+  private final long seed;
+  private final boolean initiativeOrder;
+  private final Party party0;
+  private final Party party1;
+  // The logged moves, from the first move to the END byte
+  private final ByteBuffer moves;
+
+  /**
+   * Constructor - Reads the header of a log in a buffer.
+   * @param log, the bytes of a replay log, from its position to its limit
+   */
+  public ReplayLog(ByteBuffer log) {
+    ByteBuffer buffer = log.duplicate();
+    if(buffer.remaining() < 14 || buffer.getInt() != ReplayRecorder.MAGIC) {
+      throw new RuntimeException("Not a replay log.");
+    }
+    if(buffer.get() != ReplayRecorder.VERSION) {
+      throw new RuntimeException("Unsupported replay log version.");
+    }
+    this.initiativeOrder = (buffer.get() & ReplayRecorder.INITIATIVE_ORDER) != 0;
+    this.seed = buffer.getLong();
+    this.party0 = getParty(buffer);
+    this.party1 = getParty(buffer);
+    this.moves = buffer.slice();
+  }
+
+  /**
+   * Reads a replay log from a file, which is mapped into memory rather
+   * than copied.
+   * @param path, the log file
+   */
+  public static ReplayLog read(Path path) throws IOException {
+    try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      return new ReplayLog(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  // Retrieves the seed of the battle's SplittableRandom
+  public long getSeed() {
+    return this.seed;
+  }
+
+  // Retrieves whether or not the battle was played in initiative order
+  public boolean getInitiativeOrder() {
+    return this.initiativeOrder;
+  }
+
+  /**
+   * Returns a new copy of one of the parties, as it was before the first move.
+   * @param side, the party (0 or 1)
+   */
+  public Party getParty(int side) {
+    return side == 0 ? this.party0.copy() : this.party1.copy();
+  }
+
+  /**
+   * Returns the number of logged moves.
+   */
+  public int getMoveCount() {
+    ByteBuffer moves = this.moves.duplicate();
+    int count = 0;
+    while(true) {
+      int move = moves.get() & 0xFF;
+      if(move == ReplayRecorder.END) {
+        return count;
+      }
+      if(move >>> 3 == ReplayRecorder.LONG_INDEX) {
+        getVarint(moves);
+      }
+      int command = move & 3;
+      if(command == BattleState.ATTACK || command == BattleState.MAGIC) {
+        getVarint(moves);
+      }
+      count++;
+    }
+  }
+
+  /**
+   * Returns an engine that replays the battle between new copies of the
+   * logged parties.
+   */
+  public BattleEngine newEngine() {
+    return this.newEngine(this.getParty(0), this.getParty(1));
+  }
+
+  /**
+   * Returns an engine that replays the battle between the given parties,
+   * which must be the same as the logged ones, e.g. to show it on screen.
+   * @param party0, the first party
+   * @param party1, the second party
+   */
+  public BattleEngine newEngine(Party party0, Party party1) {
+    if(!(sameParty(party0, this.party0)) || !(sameParty(party1, this.party1))) {
+      throw new RuntimeException("The parties are not those of the replay.");
+    }
+    ByteBuffer cursor = this.moves.duplicate();
+    BattleEngine engine = new BattleEngine(party0, new Replay(cursor, 0),
+                                           party1, new Replay(cursor, 1),
+                                           new SplittableRandom(this.seed));
+    engine.setInitiativeOrder(this.initiativeOrder);
+    return engine;
+  }
+
+  /**
+   * The action source of one party, reading the logged moves from a cursor
+   * it shares with the other party's.
+   */
+  private static class Replay implements ActionSource {
+    private final ByteBuffer cursor;
+    private final int side;
+    private int target;
+
+    Replay(ByteBuffer cursor, int side) {
+      this.cursor = cursor;
+      this.side = side;
+      this.target = -1;
+    }
+
+    public String chooseCommand(Party allies, int heroIndex, Party opponents) {
+      int move = this.cursor.hasRemaining() ? this.cursor.get() & 0xFF : ReplayRecorder.END;
+      if(move == ReplayRecorder.END) {
+        throw new RuntimeException("The replay log has no more moves.");
+      }
+      int hero = move >>> 3;
+      if(hero == ReplayRecorder.LONG_INDEX) {
+        hero = getVarint(this.cursor);
+      }
+      if(((move >>> 2) & 1) != this.side || hero != heroIndex) {
+        throw new RuntimeException("The battle has diverged from the replay log.");
+      }
+      int command = move & 3;
+      this.target = -1;
+      if(command == BattleState.ATTACK || command == BattleState.MAGIC) {
+        this.target = getVarint(this.cursor);
+      }
+      return Party.COMMANDS[command];
+    }
+
+    public int chooseTarget(Party allies, int heroIndex, Party opponents) {
+      return this.target;
+    }
+  }
+
+  // Reads a party written by ReplayRecorder
+  private static Party getParty(ByteBuffer buffer) {
+    Hero[] heroes = new Hero[getVarint(buffer)];
+    for(int i = 0; i < heroes.length; i++) {
+      int maxHealth = getVarint(buffer);
+      int currentHealth = getVarint(buffer);
+      int attack = getVarint(buffer);
+      int defense = getVarint(buffer);
+      int evasion = getVarint(buffer);
+      int magic = getVarint(buffer);
+      int magicResist = getVarint(buffer);
+      int speed = getVarint(buffer);
+      int flags = buffer.get();
+      String name = getString(buffer);
+      String aliveImg = getString(buffer);
+      String deadImg = getString(buffer);
+      heroes[i] = new Hero(maxHealth, attack, defense, evasion, magic, magicResist, speed,
+                           aliveImg, deadImg, name);
+      heroes[i].setCurrentHealth(currentHealth);
+      heroes[i].setAlive((flags & 1) != 0);
+      heroes[i].setDefending((flags & 2) != 0);
+    }
+    // The heroes' indices must be those the logged moves name
+    return Party.inGivenOrder(heroes);
+  }
+
+  // Returns true if two parties have heroes with the same stats, names and state
+  private static boolean sameParty(Party a, Party b) {
+    Hero[] heroesA = a.getHeroes();
+    Hero[] heroesB = b.getHeroes();
+    if(heroesA.length != heroesB.length) {
+      return false;
+    }
+    for(int i = 0; i < heroesA.length; i++) {
+      Hero x = heroesA[i];
+      Hero y = heroesB[i];
+      if(x.getMaxHealth() != y.getMaxHealth() || x.getCurrentHealth() != y.getCurrentHealth()
+           || x.getAttack() != y.getAttack() || x.getDefense() != y.getDefense()
+           || x.getEvasion() != y.getEvasion() || x.getMagic() != y.getMagic()
+           || x.getMagicResist() != y.getMagicResist() || x.getSpeed() != y.getSpeed()
+           || x.getAlive() != y.getAlive() || x.getDefending() != y.getDefending()
+           || !(x.getName().equals(y.getName()))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Reads a string written as its length and UTF-8 bytes
+  private static String getString(ByteBuffer buffer) {
+    byte[] bytes = new byte[getVarint(buffer)];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // Reads a non-negative int written in 7-bit groups, lowest first
+  private static int getVarint(ByteBuffer buffer) {
+    int value = 0;
+    for(int shift = 0; shift < 35; shift += 7) {
+      int b = buffer.get();
+      value |= (b & 0x7F) << shift;
+      if(b >= 0) {
+        return value;
+      }
+    }
+    throw new RuntimeException("Malformed replay log.");
+  }
+
+  // Replays a log headlessly and prints its outcome and the replay speed
+  public static void main(String[] args) throws IOException {
+    ReplayLog log = read(Paths.get(args[0]));
+    int repeats = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+
+    Party party0 = log.getParty(0);
+    BattleEngine engine = log.newEngine(party0, log.getParty(1));
+    Party winner = engine.run();
+    System.out.printf("%d moves, %d turns, won by party %d%n", log.getMoveCount(),
+                      engine.getTurns(), winner == party0 ? 0 : 1);
+
+    long start = System.nanoTime();
+    for(int i = 0; i < repeats; i++) {
+      log.newEngine().run();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("%.0f replays per second%n", repeats / seconds);
+  }
+}
@@ -0,0 +1,208 @@
+/*************************************************************************
+ *  Compilation:  javac ReplayRecorder.java
+ *
+ *  Records a battle to a compact binary replay log, which ReplayLog reads
+ *  back. The log holds the seed of the battle's random number generator,
+ *  whether it is played in initiative order and both parties as they were
+ *  at the start, followed by every move chosen by either party's action
+ *  source; a battle is then reproduced exactly by a BattleEngine given the
+ *  same parties, a SplittableRandom with the same seed and the logged moves.
+ *
+ *  Each move takes one byte, holding the party, the move and the index of
+ *  the acting hero, followed by the index of the target for an attack or
+ *  magic attack as a varint (one byte for parties of up to 128 heroes).
+ *  The bytes are put in an 8 KiB buffer and written to the file's channel
+ *  only when it is full, so recording a move costs a few array stores.
+ *
+ *  File format, with integers as unsigned LEB128 varints unless sized:
+ *    int magic "TBRL", byte version, byte flags (1 = initiative order),
+ *    long seed, then for each party: size, then for each hero: maximum
+ *    and current health, attack, defense, evasion, magic, magic resist,
+ *    speed, byte flags (1 = alive, 2 = defending), name, alive image and
+ *    dead image as a varint length and UTF-8 bytes;
+ *    then the moves, each a byte (party << 2 | move | hero << 3) - with
+ *    hero 30 meaning a varint index follows - and a varint target for
+ *    "attack" and "magic"; then the byte END.
+ *
+ *  Version 1.0
+ *************************************************************************/
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class ReplayRecorder implements Closeable {
+  // "TBRL", the first four bytes of every replay log
+  static final int MAGIC = 0x5442524C;
+  static final int VERSION = 1;
+  // Flag set when the battle is played in initiative order
+  static final int INITIATIVE_ORDER = 1;
+  // Hero index meaning that the index follows as a varint
+  static final int LONG_INDEX = 30;
+  // Marks the end of the moves; its hero index, 31, is never written otherwise
+  static final int END = 0xFF;
+
+  private final FileChannel channel;
+  private final ByteBuffer buffer;
+  private boolean closed;
+
+  /**
+   * Constructor - Creates or replaces the log file and writes its header.
+   * @param path, the file to record to
+   * @param seed, the seed of the battle's SplittableRandom
+   * @param initiativeOrder, true if the battle is played in initiative order
+   * @param party0, the battle's first party, before any move
+   * @param party1, the battle's second party, before any move
+   */
+  public ReplayRecorder(Path path, long seed, boolean initiativeOrder,
+                        Party party0, Party party1) throws IOException {
+    this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                    StandardOpenOption.TRUNCATE_EXISTING);
+    this.buffer = ByteBuffer.allocate(8192);
+    this.closed = false;
+
+    this.putInt(MAGIC);
+    this.put(VERSION);
+    this.put(initiativeOrder ? INITIATIVE_ORDER : 0);
+    this.putInt((int) (seed >>> 32));
+    this.putInt((int) seed);
+    this.putParty(party0);
+    this.putParty(party1);
+  }
+
+  /**
+   * Returns an action source that makes the same choices as the given one
+   * and records them.
+   * @param side, the party whose moves the source chooses (0 or 1)
+   * @param source, the source to record
+   */
+  public ActionSource record(final int side, final ActionSource source) {
+    if(side != 0 && side != 1) {
+      throw new RuntimeException("A battle has only parties 0 and 1.");
+    }
+    return new ActionSource() {
+      public String chooseCommand(Party allies, int heroIndex, Party opponents) {
+        String command = source.chooseCommand(allies, heroIndex, opponents);
+        putMove(side, heroIndex, commandIndex(command));
+        return command;
+      }
+
+      public int chooseTarget(Party allies, int heroIndex, Party opponents) {
+        int target = source.chooseTarget(allies, heroIndex, opponents);
+        putVarint(target);
+        return target;
+      }
+    };
+  }
+
+  /**
+   * Ends the log and writes out whatever is left in the buffer.
+   */
+  public void close() throws IOException {
+    if(this.closed) {
+      return;
+    }
+    try {
+      this.put(END);
+      this.flush();
+    }
+    finally {
+      this.closed = true;
+      this.channel.close();
+    }
+  }
+
+  // Returns the index in Party.COMMANDS of a move
+  static int commandIndex(String command) {
+    for(int i = 0; i < Party.COMMANDS.length; i++) {
+      if(Party.COMMANDS[i].equals(command)) {
+        return i;
+      }
+    }
+    throw new RuntimeException("Unknown move: " + command);
+  }
+
+  // Writes the byte of a move, and the acting hero's index if it does not fit
+  private void putMove(int side, int heroIndex, int command) {
+    int hero = Math.min(heroIndex, LONG_INDEX);
+    this.put(hero << 3 | side << 2 | command);
+    if(hero == LONG_INDEX) {
+      this.putVarint(heroIndex);
+    }
+  }
+
+  // Writes every hero of a party
+  private void putParty(Party party) {
+    Hero[] heroes = party.getHeroes();
+    this.putVarint(heroes.length);
+    for(int i = 0; i < heroes.length; i++) {
+      Hero hero = heroes[i];
+      this.putVarint(hero.getMaxHealth());
+      this.putVarint(hero.getCurrentHealth());
+      this.putVarint(hero.getAttack());
+      this.putVarint(hero.getDefense());
+      this.putVarint(hero.getEvasion());
+      this.putVarint(hero.getMagic());
+      this.putVarint(hero.getMagicResist());
+      this.putVarint(hero.getSpeed());
+      this.put((hero.getAlive() ? 1 : 0) | (hero.getDefending() ? 2 : 0));
+      this.putString(hero.getName());
+      this.putString(hero.getAliveImg());
+      this.putString(hero.getDeadImg());
+    }
+  }
+
+  // Writes a string as its length and UTF-8 bytes
+  private void putString(String string) {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    this.putVarint(bytes.length);
+    for(int i = 0; i < bytes.length; i++) {
+      this.put(bytes[i]);
+    }
+  }
+
+  // Writes a non-negative int in 7-bit groups, lowest first
+  private void putVarint(int value) {
+    while((value & ~0x7F) != 0) {
+      this.put((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    this.put(value);
+  }
+
+  // Writes an int, highest byte first
+  private void putInt(int value) {
+    this.put(value >>> 24);
+    this.put(value >>> 16);
+    this.put(value >>> 8);
+    this.put(value);
+  }
+
+  // Writes the low byte of an int, writing out the buffer if it is full
+  private void put(int value) {
+    if(this.closed) {
+      throw new RuntimeException("The replay log has been closed.");
+    }
+    if(!(this.buffer.hasRemaining())) {
+      this.flush();
+    }
+    this.buffer.put((byte) value);
+  }
+
+  // Writes the buffer's contents to the file
+  private void flush() {
+    this.buffer.flip();
+    try {
+      while(this.buffer.hasRemaining()) {
+        this.channel.write(this.buffer);
+      }
+    }
+    catch(IOException e) {
+      throw new RuntimeException("The replay log could not be written.", e);
+    }
+    this.buffer.clear();
+  }
+}
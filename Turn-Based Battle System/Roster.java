@@ -0,0 +1,169 @@
+/*************************************************************************
+ *  Compilation:  javac Roster.java
+ *
+ *  Hero definitions and party compositions read from a roster file, for
+ *  Tournament and StatBalancer. The roster is a text file with one
+ *  definition per line, blank lines and lines starting with # ignored:
+ *    hero <id> <maxHealth> <attack> <defense> <evasion> <magic> <magicResist>
+ *         <speed> <image> <name>
+ *    party <name> <hero id> <hero id> ...
+ *  where a hero's name is the rest of its line and a party may use a hero
+ *  more than once. Parties are kept as the indices of their heroes, so
+ *  they can be built again from other stats for the same heroes.
+ *
+ *  Version 1.0
+ *************************************************************************/
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class Roster {
+  private final List<String> heroIds;
+  private final List<Hero> heroes;
+  private final List<String> partyNames;
+  private final List<int[]> partyMembers;
+
+  // Used by read
+  private Roster() {
+    this.heroIds = new ArrayList<String>();
+    this.heroes = new ArrayList<Hero>();
+    this.partyNames = new ArrayList<String>();
+    this.partyMembers = new ArrayList<int[]>();
+  }
+
+  /**
+   * Reads a roster file.
+   * @param path, the file of hero definitions and parties
+   */
+  public static Roster read(Path path) throws IOException {
+    Roster roster = new Roster();
+    Map<String, Integer> indices = new HashMap<String, Integer>();
+    try(BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+      int number = 0;
+      String line;
+      while((line = reader.readLine()) != null) {
+        number++;
+        line = line.trim();
+        if(line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] words = line.split("\\s+");
+        if(words[0].equals("hero") && words.length >= 11) {
+          int[] stats = new int[7];
+          for(int i = 0; i < stats.length; i++) {
+            try {
+              stats[i] = Integer.parseInt(words[2 + i]);
+            }
+            catch(NumberFormatException e) {
+              throw new RuntimeException("Line " + number + ": not a number: " + words[2 + i]);
+            }
+          }
+          String name = line.split("\\s+", 11)[10];
+          indices.put(words[1], roster.heroes.size());
+          roster.heroIds.add(words[1]);
+          roster.heroes.add(new Hero(stats[0], stats[1], stats[2], stats[3], stats[4],
+                                     stats[5], stats[6], words[9], name));
+        }
+        else if(words[0].equals("party") && words.length >= 3) {
+          int[] members = new int[words.length - 2];
+          for(int i = 0; i < members.length; i++) {
+            Integer index = indices.get(words[2 + i]);
+            if(index == null) {
+              throw new RuntimeException("Line " + number + ": unknown hero: " + words[2 + i]);
+            }
+            members[i] = index;
+          }
+          roster.partyNames.add(words[1]);
+          roster.partyMembers.add(members);
+        }
+        else {
+          throw new RuntimeException("Line " + number + ": expected a hero or a party.");
+        }
+      }
+    }
+    return roster;
+  }
+
+  // Retrieves the number of hero definitions
+  public int getHeroCount() {
+    return this.heroes.size();
+  }
+
+  // Retrieves the id of a hero definition
+  public String getHeroId(int hero) {
+    return this.heroIds.get(hero);
+  }
+
+  // Retrieves a copy of a defined hero
+  public Hero getHero(int hero) {
+    return this.heroes.get(hero).copy();
+  }
+
+  // Retrieves the number of parties
+  public int getPartyCount() {
+    return this.partyNames.size();
+  }
+
+  // Retrieves the name of a party
+  public String getPartyName(int party) {
+    return this.partyNames.get(party);
+  }
+
+  // Retrieves the names of all parties
+  public List<String> getPartyNames() {
+    return new ArrayList<String>(this.partyNames);
+  }
+
+  /**
+   * Returns a new party of copies of its defined heroes.
+   * @param party, the index of the party
+   */
+  public Party buildParty(int party) {
+    Hero[] heroes = this.heroes.toArray(new Hero[0]);
+    return this.buildParty(party, heroes);
+  }
+
+  /**
+   * Returns a new party of copies of the given heroes, in place of the
+   * defined ones.
+   * @param party, the index of the party
+   * @param heroes, a hero for every hero definition, by index
+   */
+  public Party buildParty(int party, Hero[] heroes) {
+    int[] members = this.partyMembers.get(party);
+    Hero[] copies = new Hero[members.length];
+    for(int i = 0; i < members.length; i++) {
+      copies[i] = heroes[members[i]].copy();
+    }
+    return new Party(copies);
+  }
+
+  /**
+   * Returns a new copy of every party.
+   */
+  public List<Party> buildParties() {
+    List<Party> parties = new ArrayList<Party>();
+    for(int p = 0; p < this.getPartyCount(); p++) {
+      parties.add(this.buildParty(p));
+    }
+    return parties;
+  }
+
+  /**
+   * Returns the roster line defining a hero with the given stats.
+   * @param hero, the index of the hero definition
+   * @param stats, the hero to take the stats, image and name from
+   */
+  public String toHeroLine(int hero, Hero stats) {
+    return String.format("hero %s %d %d %d %d %d %d %d %s %s", this.heroIds.get(hero),
+                         stats.getMaxHealth(), stats.getAttack(), stats.getDefense(),
+                         stats.getEvasion(), stats.getMagic(), stats.getMagicResist(),
+                         stats.getSpeed(), stats.getAliveImg(), stats.getName());
+  }
+}
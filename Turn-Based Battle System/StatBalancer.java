@@ -0,0 +1,394 @@
+/*************************************************************************
+ *  Compilation:  javac StatBalancer.java
+ *  Execution:    java -Djava.awt.headless=true StatBalancer roster [generations]
+ *                  [population] [battles] [seed]
+ *
+ *  Searches for hero stats that balance the parties of a roster, with a
+ *  genetic algorithm. A candidate gives every hero definition of the roster
+ *  its seven stats, each from 1 to 100. Its parties play every pairing for
+ *  a number of battles, as in Tournament, and each party's win rate is the
+ *  mean of its matchups' win rates. A candidate's cost is the squared
+ *  distance of every party's win rate from the target range (by default 45%
+ *  to 55%), plus a small penalty for straying from the roster's stats, so
+ *  that of two balanced candidates the one closer to the original design
+ *  is preferred.
+ *
+ *  Every generation keeps its two best candidates and breeds the rest from
+ *  parents picked by tournament selection, with uniform crossover and
+ *  Gaussian mutation clamped to the stat range. The candidates of a
+ *  generation are evaluated in parallel on a pool with one thread per core.
+ *  Each pairing is always played with the same seed (common random
+ *  numbers), so candidates are compared on the same dice rolls and a
+ *  candidate's cost never changes; costs are therefore cached, and a
+ *  candidate met again, e.g. an unmutated child or a kept one, costs a
+ *  table look-up.
+ *
+ *  Version 1.0
+ *************************************************************************/
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class StatBalancer {
+  // The range of every stat
+  public static final int MIN_STAT = 1;
+  public static final int MAX_STAT = 100;
+  // Stats per hero, in the order of the Hero constructor
+  private static final int STATS = 7;
+  // Weight of the penalty for changing stats
+  private static final double CHANGE_PENALTY = 1e-4;
+  // Candidates kept unchanged from one generation to the next
+  private static final int ELITES = 2;
+  // Candidates competing to become a parent
+  private static final int TOURNAMENT_SIZE = 3;
+  // Standard deviation of a mutation
+  private static final double MUTATION_STEP = 6;
+
+  private final Roster roster;
+  private final double lower;
+  private final double upper;
+  private final int battles;
+  private final int threads;
+  private final long[][] seeds;
+  private final int[] original;
+  private final ConcurrentHashMap<Genome, Double> costs;
+  private final AtomicLong evaluations;
+  private final AtomicLong lookups;
+
+  /**
+   * Constructor
+   * @param roster, the heroes to balance and the parties to balance them by
+   * @param lower, the lowest acceptable win rate of a party, e.g. 0.45
+   * @param upper, the highest acceptable win rate of a party, e.g. 0.55
+   * @param battles, the number of battles played per pairing of parties
+   * @param threads, the number of candidates evaluated at once
+   * @param seed, the root seed of every battle played
+   */
+  public StatBalancer(Roster roster, double lower, double upper, int battles,
+                      int threads, long seed) {
+    if(roster.getPartyCount() < 2 || battles < 1 || threads < 1 || lower > upper) {
+      throw new RuntimeException("Need 2 parties, 1 battle, 1 thread and a target range.");
+    }
+    this.roster = roster;
+    this.lower = lower;
+    this.upper = upper;
+    this.battles = battles;
+    this.threads = threads;
+    SplittableRandom random = new SplittableRandom(seed);
+    int n = roster.getPartyCount();
+    this.seeds = new long[n][n];
+    for(int a = 0; a < n; a++) {
+      for(int b = a + 1; b < n; b++) {
+        this.seeds[a][b] = random.nextLong();
+      }
+    }
+    this.original = new int[STATS * roster.getHeroCount()];
+    for(int h = 0; h < roster.getHeroCount(); h++) {
+      Hero hero = roster.getHero(h);
+      int[] stats = {hero.getMaxHealth(), hero.getAttack(), hero.getDefense(),
+        hero.getEvasion(), hero.getMagic(), hero.getMagicResist(), hero.getSpeed()};
+      for(int s = 0; s < STATS; s++) {
+        this.original[STATS * h + s] = clamp(stats[s]);
+      }
+    }
+    this.costs = new ConcurrentHashMap<Genome, Double>();
+    this.evaluations = new AtomicLong();
+    this.lookups = new AtomicLong();
+  }
+
+  /**
+   * Runs the genetic algorithm and returns the best heroes found, one for
+   * every hero definition of the roster.
+   * @param generations, the number of generations to breed
+   * @param populationSize, the number of candidates per generation
+   * @param seed, the seed of the random choices of the algorithm
+   */
+  public Hero[] optimize(int generations, int populationSize, long seed) {
+    if(generations < 1 || populationSize <= ELITES) {
+      throw new RuntimeException("Need a generation of more than " + ELITES + " candidates.");
+    }
+    SplittableRandom random = new SplittableRandom(seed);
+    Genome[] population = new Genome[populationSize];
+    // The roster's stats are kept as a candidate, so the result is never worse
+    population[0] = new Genome(this.original.clone());
+    for(int i = 1; i < populationSize; i++) {
+      population[i] = this.mutate(this.original, 1.0, random);
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(this.threads);
+    try {
+      double[] costs = this.evaluate(population, pool);
+      for(int generation = 1; generation < generations; generation++) {
+        sortByCost(population, costs);
+        Genome[] next = new Genome[populationSize];
+        for(int i = 0; i < ELITES; i++) {
+          next[i] = population[i];
+        }
+        double rate = 1.0 / this.original.length;
+        for(int i = ELITES; i < populationSize; i++) {
+          Genome mother = select(population, costs, random);
+          Genome father = select(population, costs, random);
+          next[i] = this.mutate(crossover(mother, father, random), rate, random);
+        }
+        population = next;
+        costs = this.evaluate(population, pool);
+      }
+      sortByCost(population, costs);
+      return this.toHeroes(population[0]);
+    }
+    finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Returns the cost of a set of heroes: 0 if every party's win rate is in
+   * the target range and the stats are the roster's.
+   * @param heroes, a hero for every hero definition of the roster
+   */
+  public double getCost(Hero[] heroes) {
+    return this.cost(toGenome(heroes));
+  }
+
+  /**
+   * Returns every party's mean win rate over its matchups.
+   * @param heroes, a hero for every hero definition of the roster
+   */
+  public double[] getWinRates(Hero[] heroes) {
+    int n = this.roster.getPartyCount();
+    Party[] parties = new Party[n];
+    for(int p = 0; p < n; p++) {
+      parties[p] = this.roster.buildParty(p, heroes);
+    }
+    double[] rates = new double[n];
+    for(int a = 0; a < n; a++) {
+      for(int b = a + 1; b < n; b++) {
+        double rate = WinRateEstimator.estimate(parties[a], parties[b], this.battles, 1,
+                                                this.seeds[a][b]).getWinRate();
+        rates[a] += rate;
+        rates[b] += 1 - rate;
+      }
+    }
+    for(int p = 0; p < n; p++) {
+      rates[p] /= n - 1;
+    }
+    return rates;
+  }
+
+  // Retrieves the number of candidates whose battles have been played
+  public long getEvaluations() {
+    return this.evaluations.get();
+  }
+
+  // Retrieves the number of candidates whose cost was found in the cache
+  public long getCacheHits() {
+    return this.lookups.get() - this.evaluations.get();
+  }
+
+  // Evaluates every candidate of a generation in parallel
+  private double[] evaluate(final Genome[] population, ExecutorService pool) {
+    List<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+    for(int i = 0; i < population.length; i++) {
+      final Genome genome = population[i];
+      tasks.add(() -> this.cost(genome));
+    }
+    double[] costs = new double[population.length];
+    try {
+      List<Future<Double>> futures = pool.invokeAll(tasks);
+      for(int i = 0; i < costs.length; i++) {
+        costs[i] = futures.get(i).get();
+      }
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Balancing was interrupted.", e);
+    }
+    catch(ExecutionException e) {
+      throw new RuntimeException("A candidate could not be evaluated.", e.getCause());
+    }
+    return costs;
+  }
+
+  // Returns the cost of a candidate, from the cache if it was evaluated before
+  private double cost(Genome genome) {
+    this.lookups.incrementAndGet();
+    Double cached = this.costs.get(genome);
+    if(cached != null) {
+      return cached;
+    }
+    // Two threads may evaluate the same new candidate; both get the same cost
+    this.evaluations.incrementAndGet();
+    double cost = 0;
+    double[] rates = this.getWinRates(this.toHeroes(genome));
+    for(int p = 0; p < rates.length; p++) {
+      double miss = Math.max(0, Math.max(this.lower - rates[p], rates[p] - this.upper));
+      cost += miss * miss;
+    }
+    for(int i = 0; i < genome.stats.length; i++) {
+      double change = (genome.stats[i] - this.original[i]) / (double) MAX_STAT;
+      cost += CHANGE_PENALTY * change * change;
+    }
+    this.costs.putIfAbsent(genome, cost);
+    return cost;
+  }
+
+  // Returns a copy of a candidate with each stat changed with the given probability
+  private Genome mutate(int[] stats, double rate, SplittableRandom random) {
+    int[] mutated = stats.clone();
+    for(int i = 0; i < mutated.length; i++) {
+      if(random.nextDouble() < rate) {
+        double step = MUTATION_STEP * gaussian(random);
+        mutated[i] = clamp((int) Math.round(mutated[i] + step));
+      }
+    }
+    return new Genome(mutated);
+  }
+
+  // Same as mutate(int[], double, SplittableRandom), for a candidate
+  private Genome mutate(Genome genome, double rate, SplittableRandom random) {
+    return this.mutate(genome.stats, rate, random);
+  }
+
+  // Returns the heroes of a candidate, with the roster's names and images
+  private Hero[] toHeroes(Genome genome) {
+    Hero[] heroes = new Hero[this.roster.getHeroCount()];
+    for(int h = 0; h < heroes.length; h++) {
+      Hero template = this.roster.getHero(h);
+      int[] s = genome.stats;
+      int k = STATS * h;
+      heroes[h] = new Hero(s[k], s[k + 1], s[k + 2], s[k + 3], s[k + 4], s[k + 5], s[k + 6],
+                           template.getAliveImg(), template.getDeadImg(), template.getName());
+    }
+    return heroes;
+  }
+
+  // Returns the candidate of a set of heroes
+  private static Genome toGenome(Hero[] heroes) {
+    int[] stats = new int[STATS * heroes.length];
+    for(int h = 0; h < heroes.length; h++) {
+      Hero hero = heroes[h];
+      int k = STATS * h;
+      stats[k] = clamp(hero.getMaxHealth());
+      stats[k + 1] = clamp(hero.getAttack());
+      stats[k + 2] = clamp(hero.getDefense());
+      stats[k + 3] = clamp(hero.getEvasion());
+      stats[k + 4] = clamp(hero.getMagic());
+      stats[k + 5] = clamp(hero.getMagicResist());
+      stats[k + 6] = clamp(hero.getSpeed());
+    }
+    return new Genome(stats);
+  }
+
+  // Returns a child taking each stat from either parent
+  private static Genome crossover(Genome mother, Genome father, SplittableRandom random) {
+    int[] stats = new int[mother.stats.length];
+    for(int i = 0; i < stats.length; i++) {
+      stats[i] = random.nextBoolean() ? mother.stats[i] : father.stats[i];
+    }
+    return new Genome(stats);
+  }
+
+  // Returns the cheapest of a few randomly chosen candidates
+  private static Genome select(Genome[] population, double[] costs, SplittableRandom random) {
+    int best = random.nextInt(population.length);
+    for(int i = 1; i < TOURNAMENT_SIZE; i++) {
+      int other = random.nextInt(population.length);
+      if(costs[other] < costs[best]) {
+        best = other;
+      }
+    }
+    return population[best];
+  }
+
+  // Sorts the candidates, and their costs with them, by ascending cost
+  private static void sortByCost(Genome[] population, double[] costs) {
+    Integer[] order = new Integer[population.length];
+    for(int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> Double.compare(costs[a], costs[b]));
+    Genome[] sortedPopulation = new Genome[population.length];
+    double[] sortedCosts = new double[costs.length];
+    for(int i = 0; i < order.length; i++) {
+      sortedPopulation[i] = population[order[i]];
+      sortedCosts[i] = costs[order[i]];
+    }
+    System.arraycopy(sortedPopulation, 0, population, 0, population.length);
+    System.arraycopy(sortedCosts, 0, costs, 0, costs.length);
+  }
+
+  // Returns a standard normal random number, by the Box-Muller transform
+  private static double gaussian(SplittableRandom random) {
+    double u = 1 - random.nextDouble();
+    return Math.sqrt(-2 * Math.log(u)) * Math.cos(2 * Math.PI * random.nextDouble());
+  }
+
+  // Clamps a stat to the range MIN_STAT to MAX_STAT
+  private static int clamp(int stat) {
+    return Math.max(MIN_STAT, Math.min(MAX_STAT, stat));
+  }
+
+  /**
+   * The stats of every hero of a candidate, hashed once for the cache.
+   */
+  private static class Genome {
+    final int[] stats;
+    final int hash;
+
+    Genome(int[] stats) {
+      this.stats = stats;
+      this.hash = Arrays.hashCode(stats);
+    }
+
+    public int hashCode() {
+      return this.hash;
+    }
+
+    public boolean equals(Object other) {
+      return other instanceof Genome && this.hash == ((Genome) other).hash
+        && Arrays.equals(this.stats, ((Genome) other).stats);
+    }
+  }
+
+  // Balances the heroes of a roster and prints their new definitions
+  public static void main(String[] args) throws IOException {
+    Roster roster = Roster.read(Paths.get(args.length > 0 ? args[0] : "roster.txt"));
+    int generations = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+    int population = args.length > 2 ? Integer.parseInt(args[2]) : 48;
+    int battles = args.length > 3 ? Integer.parseInt(args[3]) : 2000;
+    long seed = args.length > 4 ? Long.parseLong(args[4]) : System.nanoTime();
+
+    StatBalancer balancer = new StatBalancer(roster, 0.45, 0.55, battles,
+                                             Runtime.getRuntime().availableProcessors(), seed);
+    Hero[] before = new Hero[roster.getHeroCount()];
+    for(int h = 0; h < before.length; h++) {
+      before[h] = roster.getHero(h);
+    }
+    long start = System.nanoTime();
+    Hero[] after = balancer.optimize(generations, population, seed);
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    double[] ratesBefore = balancer.getWinRates(before);
+    double[] ratesAfter = balancer.getWinRates(after);
+    for(int p = 0; p < roster.getPartyCount(); p++) {
+      System.out.printf("# %-16s win rate %.4f -> %.4f%n", roster.getPartyName(p),
+                        ratesBefore[p], ratesAfter[p]);
+    }
+    for(int h = 0; h < after.length; h++) {
+      System.out.println(roster.toHeroLine(h, after[h]));
+    }
+    System.out.printf("# cost %.6f -> %.6f, %d candidates evaluated, %d cache hits, %.1f s%n",
+                      balancer.getCost(before), balancer.getCost(after),
+                      balancer.getEvaluations(), balancer.getCacheHits(), seconds);
+  }
+}
@@ -0,0 +1,235 @@
+/*************************************************************************
+ *  Compilation:  javac Tournament.java
+ *  Execution:    java -Djava.awt.headless=true Tournament roster [battles] [results] [seed]
+ *
+ *  Round-robin tournament between the parties of a roster file. Every
+ *  pairing of two parties is a matchup of a given number of battles, played
+ *  by the rules of BattleEngine with both parties moving at random, as in
+ *  WinRateEstimator. Each matchup runs on its own thread: a virtual thread
+ *  when the Java runtime has them (Java 21 and later), or else a thread of
+ *  a pool with one thread per core.
+ *
+ *  Results are streamed: each matchup's line is written and flushed as soon
+ *  as it finishes, as CSV or, for a file ending in .jsonl or .json, as one
+ *  JSON object per line. At most a few matchups per core are in progress at
+ *  once, so memory use does not grow with the size of the roster. Lines
+ *  come in the order the matchups finish, but a given seed always gives
+ *  the same result for each matchup.
+ *
+ *  The parties are read from a roster file, whose format is given in Roster.
+ *
+ *  Version 1.0
+ *************************************************************************/
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class Tournament {
+  private final List<String> names;
+  private final List<Party> parties;
+
+  /**
+   * Constructor
+   * @param names, the name of each party
+   * @param parties, the parties, which are only read while battles are run
+   */
+  public Tournament(List<String> names, List<Party> parties) {
+    if(names.size() != parties.size() || parties.size() < 2) {
+      throw new RuntimeException("A tournament needs at least 2 named parties.");
+    }
+    this.names = new ArrayList<String>(names);
+    this.parties = new ArrayList<Party>(parties);
+  }
+
+  /**
+   * Reads a roster file, as described in Roster.
+   * @param roster, the file of hero definitions and parties
+   */
+  public static Tournament read(Path roster) throws IOException {
+    Roster read = Roster.read(roster);
+    return new Tournament(read.getPartyNames(), read.buildParties());
+  }
+
+  // Retrieves the number of matchups, one per pairing of two parties
+  public int getMatchups() {
+    int n = this.parties.size();
+    return n * (n - 1) / 2;
+  }
+
+  /**
+   * Plays every matchup and writes a line of results for each as it
+   * finishes, after a header line for CSV.
+   * @param battles, the number of battles per matchup
+   * @param seed, the root seed of every random choice made
+   * @param out, where to write the results
+   * @param json, true for JSON lines, false for CSV
+   */
+  public void run(final int battles, long seed, final Writer out, final boolean json)
+    throws IOException {
+    if(!(json)) {
+      out.write("party0,party1,battles,wins0,wins1,win_rate0,win_rate0_lower,"
+                  + "win_rate0_upper,mean_turns\n");
+      out.flush();
+    }
+
+    int threads = Runtime.getRuntime().availableProcessors();
+    ExecutorService executor = newThreadPerTaskExecutor();
+    if(executor == null) {
+      executor = Executors.newFixedThreadPool(threads);
+    }
+    // Bounds the matchups in progress, and with them the memory used
+    final Semaphore inProgress = new Semaphore(4 * threads);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    SplittableRandom root = new SplittableRandom(seed);
+    try {
+      for(int i = 0; i < this.parties.size() && failure.get() == null; i++) {
+        for(int j = i + 1; j < this.parties.size() && failure.get() == null; j++) {
+          // Seeds are drawn in pairing order, whatever the order matchups finish in
+          final long matchupSeed = root.nextLong();
+          final int a = i;
+          final int b = j;
+          inProgress.acquire();
+          executor.execute(() -> {
+            try {
+              WinRateEstimate estimate = WinRateEstimator.estimate(this.parties.get(a),
+                                                                   this.parties.get(b),
+                                                                   battles, 1, matchupSeed);
+              String line = json ? this.toJson(a, b, estimate) : this.toCsv(a, b, estimate);
+              synchronized(out) {
+                out.write(line);
+                out.write('\n');
+                out.flush();
+              }
+            }
+            catch(Throwable e) {
+              failure.compareAndSet(null, e);
+            }
+            finally {
+              inProgress.release();
+            }
+          });
+        }
+      }
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("The tournament was interrupted.", e);
+    }
+    finally {
+      executor.shutdownNow();
+    }
+    if(failure.get() != null) {
+      throw new RuntimeException("A matchup failed.", failure.get());
+    }
+  }
+
+  /**
+   * Returns an executor starting a virtual thread per task, or null if the
+   * Java runtime has no virtual threads. It is looked up by reflection so
+   * that the game still compiles and runs on Java 17.
+   */
+  private static ExecutorService newThreadPerTaskExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+        .invoke(null);
+    }
+    catch(ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  // Returns true if the Java runtime has virtual threads
+  private static boolean hasVirtualThreads() {
+    try {
+      Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return true;
+    }
+    catch(NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  // Formats a matchup's results as a CSV line
+  private String toCsv(int a, int b, WinRateEstimate estimate) {
+    return csvField(this.names.get(a)) + "," + csvField(this.names.get(b)) + ","
+      + estimate.getBattles() + "," + estimate.getWins() + ","
+      + (estimate.getBattles() - estimate.getWins()) + ","
+      + estimate.getWinRate() + "," + estimate.getWinRateLower() + ","
+      + estimate.getWinRateUpper() + "," + estimate.getMeanTurns();
+  }
+
+  // Formats a matchup's results as a JSON object
+  private String toJson(int a, int b, WinRateEstimate estimate) {
+    return "{\"party0\":" + jsonString(this.names.get(a))
+      + ",\"party1\":" + jsonString(this.names.get(b))
+      + ",\"battles\":" + estimate.getBattles()
+      + ",\"wins0\":" + estimate.getWins()
+      + ",\"wins1\":" + (estimate.getBattles() - estimate.getWins())
+      + ",\"win_rate0\":" + estimate.getWinRate()
+      + ",\"win_rate0_lower\":" + estimate.getWinRateLower()
+      + ",\"win_rate0_upper\":" + estimate.getWinRateUpper()
+      + ",\"mean_turns\":" + estimate.getMeanTurns() + "}";
+  }
+
+  // Quotes a CSV field if it contains a comma, quote or line break
+  private static String csvField(String field) {
+    if(field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0) {
+      return field;
+    }
+    return "\"" + field.replace("\"", "\"\"") + "\"";
+  }
+
+  // Returns a string as a JSON string literal
+  private static String jsonString(String string) {
+    StringBuilder json = new StringBuilder("\"");
+    for(int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      if(c == '"' || c == '\\') {
+        json.append('\\').append(c);
+      }
+      else if(c < 0x20) {
+        json.append(String.format("\\u%04x", (int) c));
+      }
+      else {
+        json.append(c);
+      }
+    }
+    return json.append('"').toString();
+  }
+
+  // Runs the tournament of a roster file and reports its throughput
+  public static void main(String[] args) throws IOException {
+    Tournament tournament = read(Paths.get(args.length > 0 ? args[0] : "roster.txt"));
+    int battles = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+    Path results = Paths.get(args.length > 2 ? args[2] : "results.csv");
+    long seed = args.length > 3 ? Long.parseLong(args[3]) : System.nanoTime();
+    boolean json = results.toString().endsWith(".jsonl") || results.toString().endsWith(".json");
+
+    long start = System.nanoTime();
+    try(BufferedWriter out = Files.newBufferedWriter(results, StandardCharsets.UTF_8)) {
+      tournament.run(battles, seed, out, json);
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    long total = (long) tournament.getMatchups() * battles;
+    System.out.printf("%d matchups on %s threads, %d battles in %.1f s%n",
+                      tournament.getMatchups(),
+                      hasVirtualThreads() ? "virtual" : "platform",
+                      total, seconds);
+    System.out.printf("%.0f battles per second%n", total / seconds);
+  }
+}
@@ -128,15 +128,87 @@ public class UnitTesting {
     assertArrayEquals(party0.sortAscendingSpeed(arr0), party0.getHeroes());
   }
   
-  // Tests for an exception when a party not consisting of four heroes
-  // is created.
+  // Tests for an exception when a party with no heroes is created.
   @Test(expected = RuntimeException.class) 
   public void testPartyConstructoException() {
-    Party error0 = new Party(arr2);
-    Party error1 = new Party(arr3);
+    Party error0 = new Party(new Hero[0]);
     
   }
   
+  // Tests that the initiative queue interleaves both parties by speed and
+  // follows changes to speed and deaths.
+  @Test
+  public void testInitiativeQueue() {
+    Party fast = party1.copy();
+    Party slow = new Party(new Hero[] {
+      new Hero(95, 45, 85, 25, 10, 30, 70, "knight.png", "Hero 0"),
+      new Hero(55, 50, 60, 45, 25, 60, 50, "thief.png", "Hero 2")});
+    InitiativeQueue queue = new InitiativeQueue(fast, slow);
+    
+    // Speeds 25, 30, 60, 80 against 50, 70
+    assertEquals(3, queue.getSlot(queue.next()));
+    int id = queue.next();
+    assertEquals(slow, queue.getParty(id));
+    assertEquals(1, queue.getSlot(id));
+    
+    slow.getHeroes()[0].setSpeed(10);
+    fast.getHeroes()[0].setSpeed(90);
+    assertEquals(0, queue.getSlot(queue.next()));
+    assertEquals(2, queue.getSlot(queue.next()));
+    fast.getHeroes()[1].die();
+    assertEquals(slow, queue.getParty(queue.next()));
+    assertEquals(1, queue.peekRound());
+    queue.detach();
+    
+    BattleEngine engine = new BattleEngine(party1.copy(), new RandomActionSource(),
+                                           slow, new RandomActionSource());
+    engine.setInitiativeOrder(true);
+    Party winner = engine.run();
+    assertEquals(false, winner.isDefeated());
+  }
+  
+  // Tests that parties of any size are sorted by speed and battle to the end.
+  @Test
+  public void testPartyArbitrarySize() {
+    Party small = new Party(arr2);
+    Party large = new Party(arr3);
+    assertEquals(3, small.getHeroes().length);
+    assertEquals(5, large.getHeroes().length);
+    for(int i = 1; i < large.getHeroes().length; i++) {
+      assertEquals(true, large.getHeroes()[i - 1].getSpeed() <= large.getHeroes()[i].getSpeed());
+      assertEquals(i, large.getIndexOfHero(large.getHeroes()[i]));
+    }
+    assertEquals(-1, small.getIndexOfHero(large.getHeroes()[0]));
+    
+    BattleEngine engine = new BattleEngine(small, new RandomActionSource(),
+                                           large, new RandomActionSource());
+    Party winner = engine.run();
+    assertEquals(false, winner.isDefeated());
+  }
+  
+  // Tests that a hero put in two parties, or twice in one, is copied so
+  // that every party still knows when it is defeated.
+  @Test
+  public void testPartySharedHeroes() {
+    // arr2 and arr3 share hero0 to hero2 with party0
+    Party small = new Party(arr2);
+    Party large = new Party(arr3);
+    BattleEngine engine = new BattleEngine(small, new RandomActionSource(),
+                                           party0, new RandomActionSource());
+    engine.run();
+    assertEquals(true, small.isDefeated() || party0.isDefeated());
+    assertEquals(false, large.isDefeated());
+    
+    Party twice = new Party(new Hero[] {hero4, hero4});
+    assertEquals(true, party1.getHeroes()[party1.getIndexOfHero(hero4)] == hero4);
+    assertEquals(false, twice.getHeroes()[0] == twice.getHeroes()[1]);
+    hero4.die();
+    assertEquals(false, twice.isDefeated());
+    twice.getHeroes()[0].die();
+    twice.getHeroes()[1].die();
+    assertEquals(true, twice.isDefeated());
+  }
+  
   // Tests setHeroes command within Party class.
   @Test 
   public void testPartySetHeroes() {
@@ -148,6 +220,46 @@ public class UnitTesting {
     
   }
   
+  // Tests that heroes replaced by setHeroes no longer count for the party.
+  @Test
+  public void testPartySetHeroesReplaced() {
+    Hero[] old = {hero4.copy(), hero5.copy()};
+    Party party = new Party(old);
+    Hero[] replaced = party.getHeroes().clone();
+    party.setHeroes(new Hero[] {hero6.copy(), hero7.copy()});
+    assertEquals(-1, party.getIndexOfHero(replaced[0]));
+    assertEquals(-1, party.getIndexOfHero(replaced[1]));
+    assertEquals(true, party.holdsAll());
+    replaced[0].die();
+    replaced[1].die();
+    replaced[0].setSpeed(1000);
+    assertEquals(false, party.isDefeated());
+    assertEquals(2, party.getAliveCount());
+    assertEquals(true, party.getHeroes()[party.getSpeedOrder()[1]].getSpeed() < 1000);
+  }
+  
+  // Tests that a party whose heroes moved to another party cannot battle,
+  // while the party they moved to can.
+  @Test
+  public void testPartySetHeroesMoved() {
+    Party q = party1.copy();
+    Party r = party0.copy();
+    r.setHeroes(q.getHeroes());
+    assertEquals(false, q.holdsAll());
+    boolean thrown = false;
+    try {
+      new BattleEngine(q, new RandomActionSource(), party0.copy(), new RandomActionSource());
+    }
+    catch(RuntimeException e) {
+      thrown = true;
+    }
+    assertEquals(true, thrown);
+    
+    BattleEngine engine = new BattleEngine(r, new RandomActionSource(),
+                                           party0.copy(), new RandomActionSource());
+    assertEquals(false, engine.run().isDefeated());
+  }
+  
   // Tests sortAscendingSpeed function within Party class.
   @Test
   public void testPartySortAscendingSpeed() {
@@ -173,6 +285,26 @@ public class UnitTesting {
     
   }
   
+  // Tests that a party keeps the given heroes, leaves the given array as it
+  // was, and keeps its speed order up to date.
+  @Test
+  public void testPartySpeedOrder() {
+    Hero[] heroes = {hero4.copy(), hero5.copy(), hero6.copy(), hero7.copy()};
+    Hero[] given = heroes.clone();
+    Party party = new Party(heroes);
+    
+    assertArrayEquals(given, heroes);
+    assertEquals(80, heroes[0].getSpeed());
+    assertEquals(3, party.getIndexOfHero(heroes[0]));
+    assertEquals(0, party.getIndexOfHero(heroes[1]));
+    assertArrayEquals(new int[] {0, 1, 2, 3}, party.getSpeedOrder());
+    
+    heroes[0].setSpeed(1);
+    assertArrayEquals(new int[] {3, 0, 1, 2}, party.getSpeedOrder());
+    heroes[1].setSpeed(100);
+    assertArrayEquals(new int[] {3, 1, 2, 0}, party.getSpeedOrder());
+  }
+  
   // Tests isDefeated function within Party class.
   @Test
   public void testPartyIsDefeated() {
@@ -185,6 +317,32 @@ public class UnitTesting {
     
   }
   
+  // Tests that Party tracks which heroes are alive and only targets those.
+  @Test
+  public void testPartyRandomAliveIndex() {
+    Party party = party1.copy();
+    Hero[] heroes = party.getHeroes();
+    heroes[0].die();
+    heroes[2].die();
+    assertEquals(2, party.getAliveCount());
+    
+    java.util.SplittableRandom random = new java.util.SplittableRandom(7);
+    int[] picks = new int[4];
+    for(int i = 0; i < 1000; i++) {
+      picks[party.randomAliveIndex(random)]++;
+    }
+    assertEquals(0, picks[0]);
+    assertEquals(0, picks[2]);
+    assertEquals(true, picks[1] > 400 && picks[3] > 400);
+    
+    heroes[1].die();
+    heroes[3].die();
+    assertEquals(true, party.isDefeated());
+    heroes[3].setAlive(true);
+    assertEquals(false, party.isDefeated());
+    assertEquals(3, party.randomAliveIndex(random));
+  }
+  
   // Tests getIndexOfHero function within Party class.
   @Test
   public void testPartyGetIndexOfHero() {
@@ -211,4 +369,515 @@ public class UnitTesting {
     assertEquals("defend", battle0.getCommand(1, 0));
     
   }
+  
+  // Tests that a BattleEngine runs a computer controlled battle to completion.
+  @Test
+  public void testBattleEngineRun() {
+    Hero[] test = new Hero[4];
+    test[0] = new Hero(95, 45, 85, 25, 10, 30, 25, "knight.png", "Hero 0");
+    test[1] = new Hero(55, 50, 60, 45, 25, 60, 80, "thief.png", "Hero 2");
+    test[2] = new Hero(65, 10, 45, 65, 90, 70, 55, "mage.png", "Hero 1");
+    test[3] = new Hero(55, 70, 30, 60, 15, 30, 95, "assassin.png", "Hero 3");
+    Party party2 = new Party(test);
+    
+    BattleEngine engine = new BattleEngine(party2, new RandomActionSource(),
+                                           party1, new RandomActionSource());
+    Party winner = engine.run();
+    
+    assertEquals(true, engine.isOver());
+    assertEquals(true, winner.equals(party2) || winner.equals(party1));
+    assertEquals(false, winner.isDefeated());
+    assertEquals(true, engine.getTurns() > 0);
+    
+  }
+  
+  // Tests that WinRateEstimator counts every battle and leaves its parties untouched.
+  @Test
+  public void testWinRateEstimator() {
+    WinRateEstimate estimate = WinRateEstimator.estimate(party1, party1.copy(), 200, 2, 42);
+    
+    assertEquals(200, estimate.getBattles());
+    assertEquals(true, estimate.getWinRateLower() <= estimate.getWinRate());
+    assertEquals(true, estimate.getWinRateUpper() >= estimate.getWinRate());
+    assertEquals(true, estimate.getMeanTurns() >= 1);
+    assertEquals(4, estimate.getSurvivalRates0().length);
+    for(int i = 0; i < 4; i++) {
+      assertEquals(party1.getHeroes()[i].getMaxHealth(),
+                   party1.getHeroes()[i].getCurrentHealth());
+    }
+    
+  }
+  
+  // Tests the exact solver on a one on one battle that can be solved by hand:
+  // every move but defend kills unless it is dodged, 1% of the time.
+  @Test
+  public void testBattleSolver() {
+    Party fast = new Party(new Hero[] {new Hero(1, 50, 50, 4, 50, 50, 60, "knight.png", "Fast")});
+    Party slow = new Party(new Hero[] {new Hero(1, 50, 50, 4, 50, 50, 40, "ghost.png", "Slow")});
+    BattleOutcome outcome = BattleSolver.solve(fast, slow, 1000, 1e-15, 2);
+    
+    double kill = 0.95 * 0.99;
+    double expected = kill / (1 - (1 - kill) * (1 - kill));
+    assertEquals(expected, outcome.getWinProbability(), 1e-9);
+    assertEquals(kill, outcome.getWinsByTurn()[1], 1e-12);
+    assertEquals(1.0, outcome.getWinProbability() + outcome.getLossProbability()
+                   + outcome.getUnresolvedProbability(), 1e-9);
+    assertEquals(true, outcome.getUnresolvedProbability() < 1e-9);
+    assertEquals(1, fast.getHeroes()[0].getCurrentHealth());
+  }
+  
+  // Tests for an exception when a party is too large to solve.
+  @Test(expected = RuntimeException.class)
+  public void testBattleSolverPartyTooLarge() {
+    Hero[] raid = new Hero[31];
+    for(int i = 0; i < raid.length; i++) {
+      raid[i] = hero4.copy();
+    }
+    BattleSolver.solve(new Party(raid), party1.copy(), 1, 1e-3, 1);
+  }
+  
+  // Tests that the search keeps to its time budget and only targets living heroes.
+  @Test
+  public void testMonteCarloActionSource() {
+    Party allies = party1.copy();
+    Party opponents = party1.copy();
+    opponents.getHeroes()[0].setAlive(false);
+    opponents.getHeroes()[0].setCurrentHealth(0);
+    MonteCarloActionSource search = new MonteCarloActionSource(20, 2, false, 7);
+    for(int i = 0; i < allies.getHeroes().length; i++) {
+      long start = System.nanoTime();
+      String command = search.chooseCommand(allies, i, opponents);
+      long millis = (System.nanoTime() - start) / 1000000;
+      assertEquals(true, millis >= 20 && millis < 500);
+      assertEquals(true, search.getIterations() > 0);
+      assertEquals(true, java.util.Arrays.asList(Party.COMMANDS).contains(command));
+      if(command.equals("attack") || command.equals("magic")) {
+        int target = search.chooseTarget(allies, i, opponents);
+        assertEquals(true, opponents.getHeroes()[target].getAlive());
+      }
+    }
+    search.shutdown();
+    
+    // In initiative order the opponents may be the party winning ties
+    InitiativeQueue queue = new InitiativeQueue(opponents, allies);
+    assertEquals(true, queue.getFirstParty() == opponents);
+    search = new MonteCarloActionSource(20, 1, true, 7);
+    for(int i = 0; i < allies.getHeroes().length; i++) {
+      assertEquals(true, java.util.Arrays.asList(Party.COMMANDS)
+                     .contains(search.chooseCommand(allies, i, opponents)));
+    }
+    queue.detach();
+    search.shutdown();
+  }
+  
+  // Tests that copies share their template but not their combat state.
+  @Test
+  public void testHeroTemplate() {
+    HeroTemplate template = new HeroTemplate(95, 45, 85, 25, 10, 30, 25, "knight.png",
+                                             "skullandbones.png", "Knight");
+    Hero hero = template.newHero();
+    assertEquals(95, hero.getCurrentHealth());
+    assertEquals("Knight", hero.getName());
+    hero.defend();
+    hero.setCurrentHealth(40);
+    
+    Hero copy = hero.copy();
+    assertEquals(true, copy.getTemplate() == template);
+    assertEquals(40, copy.getCurrentHealth());
+    assertEquals(170, copy.getDefense());
+    assertEquals(true, copy.getDefending());
+    copy.setCurrentHealth(1);
+    assertEquals(40, hero.getCurrentHealth());
+    assertEquals(85, template.getDefense());
+    
+    boolean thrown = false;
+    try {
+      new HeroTemplate(95, 0, 85, 25, 10, 30, 25, "knight.png", "skullandbones.png", "Knight");
+    }
+    catch(RuntimeException e) {
+      thrown = true;
+    }
+    assertEquals(true, thrown);
+  }
+  
+  // Tests that a compiled catalog finds every hero by id with its stats and strings.
+  @Test
+  public void testHeroCatalog() throws java.io.IOException {
+    java.nio.file.Path roster = java.nio.file.Files.createTempFile("roster", ".txt");
+    java.nio.file.Path path = java.nio.file.Files.createTempFile("heroes", ".cat");
+    try {
+      java.nio.file.Files.write(roster, java.util.Arrays.asList(
+        "hero knight 95 45 85 25 10 30 25 knight.png Knight",
+        "hero skeleton 100 80 80 30 80 70 80 skeleton.png Skeleton King",
+        "hero mage 65 10 45 65 90 70 55 mage.png Mage"));
+      HeroCatalog.compile(Roster.read(roster), path);
+      HeroCatalog catalog = HeroCatalog.open(path);
+      
+      assertEquals(3, catalog.getCount());
+      assertEquals(1, catalog.indexOf("skeleton"));
+      assertEquals(-1, catalog.indexOf("zombie"));
+      assertEquals("mage", catalog.getId(2));
+      HeroTemplate skeleton = catalog.getTemplate("skeleton");
+      assertEquals("Skeleton King", skeleton.getName());
+      assertEquals("skullandbones.png", skeleton.getDeadImg());
+      assertEquals(80, skeleton.getSpeed());
+      assertEquals(true, catalog.getTemplate(1) == skeleton);
+      assertEquals(95, catalog.newHero("knight").getCurrentHealth());
+    }
+    finally {
+      java.nio.file.Files.delete(roster);
+      java.nio.file.Files.delete(path);
+    }
+  }
+  
+  // Tests that battles, turns, actions, deaths and latencies are counted.
+  @Test
+  public void testBattleMetrics() {
+    BattleMetrics metrics = BattleMetrics.getInstance();
+    long battles = metrics.getBattles();
+    long turns = metrics.getTurns();
+    long deaths = metrics.getDeaths();
+    long actions = metrics.getAttacks() + metrics.getMagicAttacks()
+      + metrics.getClusterAttacks() + metrics.getDefends();
+    
+    BattleEngine engine = new BattleEngine(party0.copy(), new RandomActionSource(),
+                                           party1.copy(), new RandomActionSource(),
+                                           new java.util.SplittableRandom(7));
+    Party winner = engine.run();
+    assertEquals(battles + 1, metrics.getBattles());
+    assertEquals(turns + engine.getTurns(), metrics.getTurns());
+    assertEquals(true, metrics.getDeaths() - deaths >= 4);
+    assertEquals(true, metrics.getAttacks() + metrics.getMagicAttacks()
+                   + metrics.getClusterAttacks() + metrics.getDefends() - actions
+                   >= engine.getTurns());
+    
+    // A key is timed against the first frame built after it was typed
+    long built = System.nanoTime();
+    long keys = metrics.getKeyToRepaintCount();
+    BattleMetrics.repainted(System.nanoTime());
+    BattleMetrics.keyTyped();
+    BattleMetrics.repainted(built);
+    assertEquals(keys, metrics.getKeyToRepaintCount());
+    BattleMetrics.repainted(System.nanoTime());
+    assertEquals(keys + 1, metrics.getKeyToRepaintCount());
+    
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(1000);
+    histogram.record(3000);
+    histogram.record(1000000);
+    assertEquals(3, histogram.getCount());
+    assertEquals(1000000, histogram.getMaxNanos());
+    assertEquals(1024, histogram.getPercentileNanos(10));
+    assertEquals(4096, histogram.getPercentileNanos(50));
+    
+    String text = BattleMetrics.toOpenMetrics();
+    assertEquals(true, text.contains("battle_battles_total " + metrics.getBattles() + "\n"));
+    assertEquals(true, text.contains("battle_actions_total{type=\"magic\"}"));
+    assertEquals(true, text.contains("battle_picture_seconds_bucket{le=\"+Inf\"}"));
+    assertEquals(true, text.endsWith("# EOF\n"));
+  }
+  
+  // Tests that a frame snapshot keeps the screen as it was when published.
+  @Test
+  public void testBattleFrame() {
+    Party party0 = this.party0.copy();
+    Party party1 = this.party1.copy();
+    Hero hero = party1.getHeroes()[2];
+    BattleFrame frame = new BattleFrame(party0, party1, "Hello", "magic", 1, 2, -1);
+    int health = hero.getCurrentHealth();
+    hero.die();
+    
+    assertEquals(4, frame.getSize(0));
+    assertEquals(health, frame.getHealth(1, 2));
+    assertEquals(hero.getMaxHealth(), frame.getMaxHealth(1, 2));
+    assertEquals(hero.getAliveImg(), frame.getImage(1, 2));
+    assertEquals("Hello", frame.getText());
+    assertEquals("magic", frame.getCommand());
+    assertEquals(1, frame.getAlly());
+    assertEquals(2, frame.getTarget());
+    assertEquals(-1, frame.getThinking());
+    assertEquals(0, new BattleFrame(party0, party1, null, null, -1, -1, -1).getHealth(1, 2));
+  }
+  
+  // Tests that a snapshot restores every hero and shares unchanged chunks.
+  @Test
+  public void testBattleSnapshot() {
+    Party party0 = party1.copy();
+    Party party1 = this.party1.copy();
+    Hero hero = party0.getHeroes()[0];
+    BattleSnapshot before = BattleSnapshot.capture(party0, party1);
+    assertEquals(true, before.update() == before);
+    
+    int health = hero.getCurrentHealth();
+    int defense = hero.getDefense();
+    hero.defend();
+    BattleSnapshot defending = before.update();
+    assertEquals(true, defending.getDefending(0, 0));
+    assertEquals(1, defending.countSharedChunks(before));
+    
+    hero.setCurrentHealth(0);
+    hero.setAlive(false);
+    party1.getHeroes()[1].setSpeed(1);
+    assertEquals(3, party0.getAliveCount());
+    before.restore();
+    assertEquals(health, hero.getCurrentHealth());
+    assertEquals(defense, hero.getDefense());
+    assertEquals(false, hero.getDefending());
+    assertEquals(4, party0.getAliveCount());
+    assertEquals(this.party1.getHeroes()[1].getSpeed(), party1.getHeroes()[1].getSpeed());
+    
+    Party branch0 = party0.copy();
+    defending.restore(branch0, party1.copy());
+    assertEquals(true, branch0.getHeroes()[0].getDefending());
+    assertEquals(2 * defense, branch0.getHeroes()[0].getDefense());
+  }
+  
+  // Tests that a tournament plays every pairing and reproduces its results from a seed.
+  @Test
+  public void testTournament() throws java.io.IOException {
+    java.nio.file.Path roster = java.nio.file.Files.createTempFile("roster", ".txt");
+    try {
+      java.nio.file.Files.write(roster, java.util.Arrays.asList(
+        "# three parties",
+        "hero knight 95 45 85 25 10 30 25 knight.png Sir Knight",
+        "hero ghost 85 65 50 70 75 65 30 ghost.png Ghost",
+        "party Knights knight knight",
+        "party Ghosts ghost ghost",
+        "party Both knight ghost"));
+      Tournament tournament = Tournament.read(roster);
+      assertEquals(3, tournament.getMatchups());
+      
+      java.io.StringWriter csv = new java.io.StringWriter();
+      tournament.run(100, 3, csv, false);
+      String[] lines = csv.toString().split("\n");
+      assertEquals(4, lines.length);
+      assertEquals(true, lines[0].startsWith("party0,party1,battles"));
+      
+      java.io.StringWriter again = new java.io.StringWriter();
+      tournament.run(100, 3, again, false);
+      String[] linesAgain = again.toString().split("\n");
+      java.util.Arrays.sort(lines);
+      java.util.Arrays.sort(linesAgain);
+      assertEquals(true, java.util.Arrays.equals(lines, linesAgain));
+      
+      java.io.StringWriter json = new java.io.StringWriter();
+      tournament.run(10, 3, json, true);
+      assertEquals(true, json.toString().startsWith("{\"party0\":"));
+    }
+    finally {
+      java.nio.file.Files.delete(roster);
+    }
+  }
+  
+  // Tests that the balancer keeps stats in range, never gets worse and caches costs.
+  @Test
+  public void testStatBalancer() throws java.io.IOException {
+    java.nio.file.Path path = java.nio.file.Files.createTempFile("roster", ".txt");
+    try {
+      java.nio.file.Files.write(path, java.util.Arrays.asList(
+        "hero knight 95 45 85 25 10 30 25 knight.png Knight",
+        "hero mage 65 10 45 65 90 70 55 mage.png Mage",
+        "party Knights knight knight",
+        "party Mages mage mage"));
+      Roster roster = Roster.read(path);
+      StatBalancer balancer = new StatBalancer(roster, 0.45, 0.55, 200, 2, 1);
+      Hero[] before = {roster.getHero(0), roster.getHero(1)};
+      Hero[] after = balancer.optimize(3, 6, 2);
+      
+      assertEquals(true, balancer.getCost(after) <= balancer.getCost(before));
+      assertEquals(true, balancer.getCacheHits() > 0);
+      for(int h = 0; h < after.length; h++) {
+        int[] stats = {after[h].getMaxHealth(), after[h].getAttack(), after[h].getDefense(),
+          after[h].getEvasion(), after[h].getMagic(), after[h].getMagicResist(),
+          after[h].getSpeed()};
+        for(int s = 0; s < stats.length; s++) {
+          assertEquals(true, stats[s] >= StatBalancer.MIN_STAT && stats[s] <= StatBalancer.MAX_STAT);
+        }
+        assertEquals(before[h].getName(), after[h].getName());
+      }
+    }
+    finally {
+      java.nio.file.Files.delete(path);
+    }
+  }
+  
+  // Tests that a recorded battle replays exactly, move for move.
+  @Test
+  public void testReplayLog() throws java.io.IOException {
+    java.nio.file.Path path = java.nio.file.Files.createTempFile("battle", ".replay");
+    try {
+      long seed = 11;
+      Party recorded0 = party1.copy();
+      Party recorded1 = party1.copy();
+      ReplayRecorder recorder = new ReplayRecorder(path, seed, true, recorded0, recorded1);
+      java.util.SplittableRandom choices = new java.util.SplittableRandom(5);
+      BattleEngine engine = new BattleEngine(recorded0,
+                                             recorder.record(0, new RandomActionSource(choices)),
+                                             recorded1,
+                                             recorder.record(1, new RandomActionSource(choices)),
+                                             new java.util.SplittableRandom(seed));
+      engine.setInitiativeOrder(true);
+      engine.run();
+      recorder.close();
+      
+      ReplayLog log = ReplayLog.read(path);
+      assertEquals(seed, log.getSeed());
+      assertEquals(true, log.getInitiativeOrder());
+      assertEquals(true, log.getMoveCount() > 0);
+      Party replayed0 = log.getParty(0);
+      Party replayed1 = log.getParty(1);
+      assertEquals(party1.getHeroes()[0].getName(), replayed0.getHeroes()[0].getName());
+      BattleEngine replay = log.newEngine(replayed0, replayed1);
+      replay.run();
+      assertEquals(engine.getTurns(), replay.getTurns());
+      for(int i = 0; i < recorded0.getHeroes().length; i++) {
+        assertEquals(recorded0.getHeroes()[i].getCurrentHealth(),
+                     replayed0.getHeroes()[i].getCurrentHealth());
+        assertEquals(recorded1.getHeroes()[i].getCurrentHealth(),
+                     replayed1.getHeroes()[i].getCurrentHealth());
+      }
+    }
+    finally {
+      java.nio.file.Files.delete(path);
+    }
+  }
+  
+  // Tests that a party not in order of speed is replayed with the same indices.
+  @Test
+  public void testReplayLogKeepsPartyOrder() throws java.io.IOException {
+    java.nio.file.Path path = java.nio.file.Files.createTempFile("battle", ".replay");
+    try {
+      long seed = 3;
+      Party recorded0 = party1.copy();
+      Hero[] fastestFirst = party1.copy().getHeroes();
+      java.util.Collections.reverse(java.util.Arrays.asList(fastestFirst));
+      recorded0.setHeroes(fastestFirst);
+      Party recorded1 = party1.copy();
+      ReplayRecorder recorder = new ReplayRecorder(path, seed, false, recorded0, recorded1);
+      java.util.SplittableRandom choices = new java.util.SplittableRandom(9);
+      BattleEngine engine = new BattleEngine(recorded0,
+                                             recorder.record(0, new RandomActionSource(choices)),
+                                             recorded1,
+                                             recorder.record(1, new RandomActionSource(choices)),
+                                             new java.util.SplittableRandom(seed));
+      engine.run();
+      recorder.close();
+      
+      ReplayLog log = ReplayLog.read(path);
+      Party replayed0 = log.getParty(0);
+      for(int i = 0; i < fastestFirst.length; i++) {
+        assertEquals(fastestFirst[i].getName(), replayed0.getHeroes()[i].getName());
+      }
+      BattleEngine replay = log.newEngine();
+      replay.run();
+      assertEquals(engine.getTurns(), replay.getTurns());
+    }
+    finally {
+      java.nio.file.Files.delete(path);
+    }
+  }
+  
+  // Tests that a seed reproduces a battle and an estimate, whatever the thread count.
+  @Test
+  public void testSeededBattlesAreReproducible() {
+    java.util.SplittableRandom random0 = new java.util.SplittableRandom(7);
+    java.util.SplittableRandom random1 = new java.util.SplittableRandom(7);
+    Party copy0 = party1.copy();
+    Party copy1 = party1.copy();
+    BattleEngine engine0 = new BattleEngine(party1.copy(), new RandomActionSource(random0.split()),
+                                            copy0, new RandomActionSource(random0.split()),
+                                            random0);
+    BattleEngine engine1 = new BattleEngine(party1.copy(), new RandomActionSource(random1.split()),
+                                            copy1, new RandomActionSource(random1.split()),
+                                            random1);
+    engine0.run();
+    engine1.run();
+    assertEquals(engine0.getTurns(), engine1.getTurns());
+    for(int i = 0; i < 4; i++) {
+      assertEquals(copy0.getHeroes()[i].getCurrentHealth(),
+                   copy1.getHeroes()[i].getCurrentHealth());
+    }
+    
+    WinRateEstimate estimate0 = WinRateEstimator.estimate(party1, party1.copy(), 10000, 1, 99);
+    WinRateEstimate estimate1 = WinRateEstimator.estimate(party1, party1.copy(), 10000, 3, 99);
+    assertEquals(estimate0.getWins(), estimate1.getWins());
+    assertEquals(estimate0.getMeanTurns(), estimate1.getMeanTurns(), 0);
+    
+  }
+  
+  // Tests that BattleState round trips parties and simulates battles as BattleEngine does.
+  @Test
+  public void testBattleStateMatchesBattleEngine() {
+    party1.getHeroes()[2].defend();
+    party1.getHeroes()[3].die();
+    BattleState state = new BattleState(party1, party1.copy());
+    Party[] parties = state.toParties();
+    for(int i = 0; i < 4; i++) {
+      Hero expected = party1.getHeroes()[i];
+      Hero actual = parties[0].getHeroes()[i];
+      assertEquals(expected.getCurrentHealth(), actual.getCurrentHealth());
+      assertEquals(expected.getDefense(), actual.getDefense());
+      assertEquals(expected.getMagicResist(), actual.getMagicResist());
+      assertEquals(expected.getAlive(), actual.getAlive());
+      assertEquals(expected.getDefending(), actual.getDefending());
+      assertEquals(expected.getName(), actual.getName());
+    }
+    
+    for(long seed = 0; seed < 50; seed++) {
+      Party copy0 = party1.copy();
+      Party copy1 = parties[1].copy();
+      java.util.SplittableRandom random0 = new java.util.SplittableRandom(seed);
+      java.util.SplittableRandom random1 = new java.util.SplittableRandom(seed);
+      BattleEngine engine = new BattleEngine(copy0, new RandomActionSource(random0.split()),
+                                             copy1, new RandomActionSource(random0.split()),
+                                             random0);
+      BattleState simulated = new BattleState(party1, parties[1]);
+      int winner = simulated.simulate(random1, random1.split(), random1.split());
+      
+      assertEquals(engine.run() == copy0 ? 0 : 1, winner);
+      assertEquals(engine.getTurns(), simulated.getTurns());
+      for(int i = 0; i < 4; i++) {
+        assertEquals(copy0.getHeroes()[i].getCurrentHealth(), simulated.getCurrentHealth(i));
+        assertEquals(copy1.getHeroes()[i].getCurrentHealth(), simulated.getCurrentHealth(4 + i));
+      }
+    }
+    
+  }
+  
+  // Tests that moves write their outcome into an ActionResult and format it lazily.
+  @Test
+  public void testActionResult() {
+    java.util.random.RandomGenerator hit = () -> Long.MAX_VALUE;
+    java.util.random.RandomGenerator dodge = () -> 0L;
+    ActionResult result = new ActionResult();
+    
+    hero4.attack(hero5, false, dodge, result);
+    assertEquals(ActionResult.ATTACK, result.getKind());
+    assertEquals(true, result.getDodged());
+    assertEquals("Hero 5 dodged the attack!", result.getMessage());
+    
+    hero5.defend(result);
+    assertEquals("Hero 5 braced itself for incoming damage!", result.getMessage());
+    hero4.attack(hero5, false, hit, result);
+    assertEquals(33, result.getDamage());
+    assertEquals(true, result.getWasDefending());
+    assertEquals("Hero 5 was defending and took 33 damage!", result.getMessage());
+    
+    hero6.magic(hero5, hit, result);
+    assertEquals(ActionResult.MAGIC, result.getKind());
+    assertEquals("Hero 5 took 33 magic damage!", result.getMessage());
+    hero6.magic(hero5, hit, result);
+    assertEquals(true, result.getDied());
+    assertEquals("Hero 5 took 33 magic damage and died!", result.getMessage());
+    
+    assertEquals("Hero 4 attacked the entire party in one fell swoop!",
+                 hero4.cluster(party1, hit));
+    
+    // A single strike of a cluster attack reads as an attack on one hero
+    assertEquals("Hero 7 dodged the attack!", hero4.attack(hero7, true, dodge));
+    hero4.attack(hero7, true, dodge, result);
+    assertEquals(true, result.getDodged());
+    assertEquals("Hero 7 took 13 damage!", hero4.attack(hero7, true, hit));
+    
+  }
 }
\ No newline at end of file
@@ -0,0 +1,113 @@
+/*************************************************************************
+ *  Compilation:  javac WinRateEstimate.java
+ *
+ *  Result of a WinRateEstimator run: how often the first of two parties
+ *  won, a 95% confidence interval for that win rate, the mean number of
+ *  turns a battle lasted and how often each hero survived.
+ *
+ *  Version 1.0
+ *************************************************************************/
+public class WinRateEstimate {
+  private final int battles;
+  private final int wins;
+  private final long totalTurns;
+  private final double[] survivalRates0;
+  private final double[] survivalRates1;
+  
+  /**
+   * Constructor
+   * @param battles, the number of battles fought
+   * @param wins, the number of battles won by party 0
+   * @param totalTurns, the number of turns summed over all battles
+   * @param survivors0, how many times each of party 0's heroes survived
+   * @param survivors1, how many times each of party 1's heroes survived
+   */
+  public WinRateEstimate(int battles, int wins, long totalTurns,
+                         long[] survivors0, long[] survivors1) {
+    if(battles <= 0) {
+      throw new RuntimeException("At least 1 battle must be fought.");
+    }
+    this.battles = battles;
+    this.wins = wins;
+    this.totalTurns = totalTurns;
+    this.survivalRates0 = rates(survivors0, battles);
+    this.survivalRates1 = rates(survivors1, battles);
+  }
+  
+  // Retrieves the number of battles fought
+  public int getBattles() {
+    return this.battles;
+  }
+  
+  // Retrieves the number of battles won by party 0
+  public int getWins() {
+    return this.wins;
+  }
+  
+  // Retrieves the fraction of battles won by party 0
+  public double getWinRate() {
+    return (double) this.wins / this.battles;
+  }
+  
+  // Retrieves the mean number of turns per battle
+  public double getMeanTurns() {
+    return (double) this.totalTurns / this.battles;
+  }
+  
+  /**
+   * Retrieves the lower end of the 95% Wilson score interval
+   * for party 0's win rate.
+   */
+  public double getWinRateLower() {
+    return this.wilson(-1);
+  }
+  
+  /**
+   * Retrieves the upper end of the 95% Wilson score interval
+   * for party 0's win rate.
+   */
+  public double getWinRateUpper() {
+    return this.wilson(1);
+  }
+  
+  /**
+   * Retrieves the fraction of battles each of party 0's heroes survived,
+   * indexed like the party's getHeroes() array.
+   */
+  public double[] getSurvivalRates0() {
+    return this.survivalRates0.clone();
+  }
+  
+  /**
+   * Retrieves the fraction of battles each of party 1's heroes survived,
+   * indexed like the party's getHeroes() array.
+   */
+  public double[] getSurvivalRates1() {
+    return this.survivalRates1.clone();
+  }
+  
+  // Wilson score interval bound, sign -1 for the lower bound and 1 for the upper
+  private double wilson(int sign) {
+    double z = 1.96;
+    double n = this.battles;
+    double p = this.getWinRate();
+    double center = p + z * z / (2 * n);
+    double margin = z * Math.sqrt(p * (1 - p) / n + z * z / (4 * n * n));
+    return (center + sign * margin) / (1 + z * z / n);
+  }
+  
+  // Divides every count by the number of battles
+  private static double[] rates(long[] counts, int battles) {
+    double[] rates = new double[counts.length];
+    for(int i = 0; i < counts.length; i++) {
+      rates[i] = (double) counts[i] / battles;
+    }
+    return rates;
+  }
+  
+  public String toString() {
+    return String.format("win rate %.4f [%.4f, %.4f] over %d battles, %.2f turns on average",
+                         this.getWinRate(), this.getWinRateLower(),
+                         this.getWinRateUpper(), this.battles, this.getMeanTurns());
+  }
+}
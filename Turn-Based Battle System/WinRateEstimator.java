@@ -0,0 +1,199 @@
+/*************************************************************************
+ *  Compilation:  javac WinRateEstimator.java
+ *  Execution:    java -Djava.awt.headless=true WinRateEstimator [battles] [seed]
+ *
+ *  Estimates how often one party beats another by running many independent
+ *  computer controlled battles. Both parties move as the enemy party does in
+ *  Party.randomAttack. The battles are split evenly between a fixed pool of
+ *  worker threads, one per core by default. Each worker plays its battles
+ *  with BattleState.simulate, which follows the same rules as a BattleEngine
+ *  on a compact copy of the two parties, so the parties passed in are never
+ *  changed. Each battle rolls its dice with its
+ *  own SplittableRandom, so no generator is shared between threads and a
+ *  given seed always gives the same estimate.
+ *
+ *  Version 1.0
+ *************************************************************************/
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class WinRateEstimator {
+  
+  // Number of battles sharing one generator split from the root seed
+  private static final int CHUNK_SIZE = 4096;
+  
+  /**
+   * Estimates party0's win rate against party1 using every available core
+   * and a seed taken from the clock.
+   * @param party0, the party whose win rate is estimated
+   * @param party1, the opposing party
+   * @param battles, the number of battles to run
+   */
+  public static WinRateEstimate estimate(Party party0, Party party1, int battles) {
+    return estimate(party0, party1, battles, Runtime.getRuntime().availableProcessors(),
+                    System.nanoTime());
+  }
+  
+  /**
+   * Estimates party0's win rate against party1 using the given number of threads.
+   * The same seed always gives the same estimate, whatever the number of threads:
+   * the battles are cut into fixed size chunks, each chunk gets its own
+   * SplittableRandom split from the root seed in chunk order, and every battle
+   * in a chunk splits its own generators from that.
+   * @param party0, the party whose win rate is estimated
+   * @param party1, the opposing party
+   * @param battles, the number of battles to run
+   * @param threads, the number of worker threads; 1 runs on the calling thread
+   * @param seed, the root seed of every random choice made
+   */
+  public static WinRateEstimate estimate(Party party0, Party party1, int battles,
+                                         int threads, long seed) {
+    if(battles <= 0 || threads <= 0) {
+      throw new RuntimeException("Battles and threads must both be at least 1.");
+    }
+    
+    SplittableRandom root = new SplittableRandom(seed);
+    List<Tally> chunks = new ArrayList<Tally>();
+    for(int start = 0; start < battles; start += CHUNK_SIZE) {
+      int end = Math.min(battles, start + CHUNK_SIZE);
+      chunks.add(new Tally(party0, party1, end - start, root.split()));
+    }
+    
+    Tally total = new Tally(party0, party1, 0, null);
+    if(threads == 1 || chunks.size() == 1) {
+      for(Tally chunk : chunks) {
+        total.add(chunk.call());
+      }
+      return total.toEstimate();
+    }
+    
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, chunks.size()));
+    try {
+      List<Future<Tally>> futures = pool.invokeAll(chunks);
+      for(Future<Tally> future : futures) {
+        total.add(future.get());
+      }
+      return total.toEstimate();
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Win rate estimation was interrupted.", e);
+    }
+    catch(ExecutionException e) {
+      throw new RuntimeException("A simulated battle failed.", e.getCause());
+    }
+    finally {
+      pool.shutdownNow();
+    }
+  }
+  
+  /**
+   * Runs one chunk of the battles and counts the results.
+   */
+  private static class Tally implements Callable<Tally> {
+    private final Party party0;
+    private final Party party1;
+    private final int count;
+    private final SplittableRandom random;
+    private int battles;
+    private int wins;
+    private long turns;
+    private final long[] survivors0;
+    private final long[] survivors1;
+    
+    Tally(Party party0, Party party1, int count, SplittableRandom random) {
+      this.party0 = party0;
+      this.party1 = party1;
+      this.count = count;
+      this.random = random;
+      this.survivors0 = new long[party0.getHeroes().length];
+      this.survivors1 = new long[party1.getHeroes().length];
+    }
+    
+    public Tally call() {
+      BattleState initial = new BattleState(this.party0, this.party1);
+      BattleState state = initial.copy();
+      for(int i = 0; i < this.count; i++) {
+        SplittableRandom battleRandom = this.random.split();
+        state.copyFrom(initial);
+        int winner = state.simulate(battleRandom, battleRandom.split(), battleRandom.split());
+        if(winner == 0) {
+          this.wins++;
+        }
+        this.battles++;
+        this.turns += state.getTurns();
+        countSurvivors(state, 0, this.survivors0);
+        countSurvivors(state, 1, this.survivors1);
+      }
+      return this;
+    }
+    
+    void add(Tally other) {
+      this.battles += other.battles;
+      this.wins += other.wins;
+      this.turns += other.turns;
+      for(int i = 0; i < this.survivors0.length; i++) {
+        this.survivors0[i] += other.survivors0[i];
+      }
+      for(int i = 0; i < this.survivors1.length; i++) {
+        this.survivors1[i] += other.survivors1[i];
+      }
+    }
+    
+    WinRateEstimate toEstimate() {
+      return new WinRateEstimate(this.battles, this.wins, this.turns,
+                                 this.survivors0, this.survivors1);
+    }
+    
+    private static void countSurvivors(BattleState state, int side, long[] survivors) {
+      for(int i = 0; i < survivors.length; i++) {
+        if(state.getAlive(state.getIndex(side, i))) {
+          survivors[i]++;
+        }
+      }
+    }
+  }
+  
+  // Estimates the win rate of the heroes against the enemies from Battle.main
+  public static void main(String[] args) {
+    int battles = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+    
+    Hero[] heroes = new Hero[4];
+    heroes[0] = new Hero(95, 45, 85, 25, 10, 30, 25, "knight.png", "Knight");
+    heroes[1] = new Hero(55, 50, 60, 45, 25, 60, 80, "thief.png", "Thief");
+    heroes[2] = new Hero(65, 10, 45, 65, 90, 70, 55, "mage.png", "Mage");
+    heroes[3] = new Hero(55, 70, 30, 60, 15, 30, 95, "assassin.png", "Assassin");
+    
+    Hero[] enemies = new Hero[4];
+    enemies[0] = new Hero(100, 80, 80, 30, 80, 70, 80, "skeleton.png", "Skeleton King");
+    enemies[1] = new Hero(85, 85, 60, 30, 60, 60, 25, "zombie.png", "Zombie");
+    enemies[2] = new Hero(90, 70, 60, 65, 85, 75, 60, "fireelemental.png", "Fire Elemental");
+    enemies[3] = new Hero(85, 65, 50, 70, 75, 65, 30, "ghost.png", "Ghost");
+    
+    Party party0 = new Party(heroes);
+    Party party1 = new Party(enemies);
+    
+    long start = System.nanoTime();
+    WinRateEstimate estimate = estimate(party0, party1, battles,
+                                        Runtime.getRuntime().availableProcessors(), seed);
+    double seconds = (System.nanoTime() - start) / 1e9;
+    
+    System.out.println(estimate);
+    for(int i = 0; i < party0.getHeroes().length; i++) {
+      System.out.printf("%-16s survived %.4f%n", party0.getHeroes()[i].getName(),
+                        estimate.getSurvivalRates0()[i]);
+    }
+    for(int i = 0; i < party1.getHeroes().length; i++) {
+      System.out.printf("%-16s survived %.4f%n", party1.getHeroes()[i].getName(),
+                        estimate.getSurvivalRates1()[i]);
+    }
+    System.out.printf("%.0f battles per second%n", battles / seconds);
+  }
+}